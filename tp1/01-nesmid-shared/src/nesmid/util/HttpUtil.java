@@ -1,8 +1,6 @@
 package nesmid.util;
 
 
-// import java.text.SimpleDateFormat; TINI
-// import java.text.ParsePosition; TINI
 import java.util.Hashtable;
 
 
@@ -175,31 +173,86 @@ public class HttpUtil
 	return result.toString();
     }
 	
-    /**  TINI
-     * The format describing an http date.
-     
-    private static SimpleDateFormat dateFormat;
-    static {
-	dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z",
-		Locale.US);
-	dateFormat.setTimeZone(new SimpleTimeZone(0, "GMT"));
-	dateFormat.setLenient(true);
+    /*
+     * HTTP dates are formatted and parsed by hand, in GMT, rather than
+     * with SimpleDateFormat, which TINI doesn't have.
+     */
+
+    private static final String[] DAYS = {
+	"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"
+    };
+
+    private static final String[] MONTHS = {
+	"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+	"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    /**
+     * The current date, formatted once a second and shared by all the
+     * threads.  A thread that finds it stale makes a new one and
+     * replaces it; since a <code>DateCache</code> never changes, the
+     * threads need no lock to read it.
+     */
+    private static volatile DateCache now = new DateCache(0);
+
+    private static final class DateCache
+    {
+	final long second;
+	final String text;
+	final byte[] line;
+
+	DateCache(long second)
+	{
+	    this.second = second;
+	    this.text = formatTime(second * 1000);
+	    this.line = ("Date: " + text + "\r\n").getBytes();
+	}
     }
-    */
+
     /**
      * Returns a string containing the current time as an HTTP-formatted
-     * date.
+     * date.  The string is made at most once a second.
      *
      * @return	HTTP date string representing the current time.
      */
     public static String
     formatTime()
     {
-	return formatTime(System.currentTimeMillis());
+	return currentDate().text;
+    }
+
+    /**
+     * Returns the encoded <code>Date</code> header line, with its line
+     * break, for a value returned by {@link #formatTime()}.
+     *
+     * @param	value
+     *		The value of the header.
+     *
+     * @return	The line, or <code>null</code> if <code>value</code> is
+     *		not the current date string itself.
+     */
+    public static byte[]
+    dateLine(String value)
+    {
+	DateCache cache = now;
+	return (value == cache.text) ? cache.line : null;
+    }
+
+    private static DateCache
+    currentDate()
+    {
+	long second = System.currentTimeMillis() / 1000;
+	DateCache cache = now;
+	if (cache.second != second) {
+	    cache = new DateCache(second);
+	    now = cache;
+	}
+	return cache;
     }
 
     /**
-     * Returns a string containing an HTTP-formatted date.
+     * Returns a string containing an HTTP-formatted date, as in
+     * "Sun, 06 Nov 1994 08:49:37 GMT".
      *
      * @param	time
      *		The date to format (current time in msec).
@@ -209,12 +262,64 @@ public class HttpUtil
     public static String
     formatTime(long time)
     {
-	return "TINI"; // TINI dateFormat.format(new Date(time)).substring(0, 29);
+	long seconds = time / 1000;
+	long days = seconds / 86400;
+	int secs = (int) (seconds % 86400);
+	if (secs < 0) {
+	    secs += 86400;
+	    days--;
+	}
+
+	/*
+	 * The civil date from the days since 1970-01-01, counting in
+	 * 400-year eras of 146097 days that start on March 1st.
+	 */
+
+	long z = days + 719468;
+	long era = ((z >= 0) ? z : z - 146096) / 146097;
+	int doe = (int) (z - era * 146097);
+	int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+	int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+	int mp = (5 * doy + 2) / 153;
+	int day = doy - (153 * mp + 2) / 5 + 1;
+	int month = (mp < 10) ? mp + 3 : mp - 9;
+	long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+
+	int weekday = (int) (days % 7);
+	if (weekday < 0) {
+	    weekday += 7;
+	}
+
+	StringBuffer sb = new StringBuffer(29);
+	sb.append(DAYS[weekday]).append(", ");
+	two(sb, day);
+	sb.append(' ').append(MONTHS[month - 1]).append(' ');
+	sb.append(year).append(' ');
+	two(sb, secs / 3600);
+	sb.append(':');
+	two(sb, secs / 60 % 60);
+	sb.append(':');
+	two(sb, secs % 60);
+	sb.append(" GMT");
+	return sb.toString();
+    }
+
+    private static void
+    two(StringBuffer sb, int n)
+    {
+	sb.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
     }
 
     /**
      * Convert a last-modified date in "standard" format
      * into a time stamp.  This "inverses" formatTime.
+     * <p>
+     * The three formats HTTP/1.1 allows are understood: RFC 1123
+     * ("Sun, 06 Nov 1994 08:49:37 GMT"), RFC 850
+     * ("Sunday, 06-Nov-94 08:49:37 GMT") and asctime
+     * ("Sun Nov  6 08:49:37 1994").  Anything after a ";", such as the
+     * "; length=" some browsers add to <code>If-Modified-Since</code>,
+     * is ignored.
      *
      * @param		time
      *			A correctly formatted HTTP date string.
@@ -224,11 +329,98 @@ public class HttpUtil
 
     public static long
     parseTime(String time) {
-	try {
-	    return 0; // TINI dateFormat.parse(time.trim(),new ParsePosition(0)).getTime();
-	} catch (Exception e) {
+	if (time == null) {
 	    return 0;
 	}
+	int length = time.indexOf(';');
+	if (length < 0) {
+	    length = time.length();
+	}
+	int day = -1;
+	int month = -1;
+	int year = -1;
+	int secs = -1;
+
+	int i = 0;
+	while (i < length) {
+	    char ch = time.charAt(i);
+	    if ((ch >= '0') && (ch <= '9')) {
+		int start = i;
+		int n = 0;
+		while ((i < length) && ((ch = time.charAt(i)) >= '0')
+			&& (ch <= '9') && (i - start < 4)) {
+		    n = n * 10 + (ch - '0');
+		    i++;
+		}
+		if ((i < length) && (time.charAt(i) == ':') && (secs < 0)) {
+		    /* hh:mm:ss */
+		    if ((i + 6 > length) || (time.charAt(i + 3) != ':')) {
+			return 0;
+		    }
+		    int mm = digits(time, i + 1);
+		    int ss = digits(time, i + 4);
+		    if ((n > 23) || (mm < 0) || (mm > 59) || (ss < 0)
+			    || (ss > 60)) {
+			return 0;
+		    }
+		    secs = n * 3600 + mm * 60 + ss;
+		    i += 6;
+		} else if ((day < 0) && (i - start <= 2)) {
+		    day = n;
+		} else if (year < 0) {
+		    year = n;
+		    if (i - start <= 2) {
+			year += (year < 70) ? 2000 : 1900;
+		    }
+		} else {
+		    return 0;
+		}
+	    } else if (((ch | 0x20) >= 'a') && ((ch | 0x20) <= 'z')) {
+		int start = i;
+		while ((i < length) && (((time.charAt(i) | 0x20) >= 'a')
+			&& ((time.charAt(i) | 0x20) <= 'z'))) {
+		    i++;
+		}
+		if ((month < 0) && (i - start >= 3)) {
+		    for (int m = 0; m < 12; m++) {
+			if (time.regionMatches(true, start, MONTHS[m], 0, 3)) {
+			    month = m + 1;
+			    break;
+			}
+		    }
+		}
+	    } else {
+		i++;
+	    }
+	}
+	if ((day < 1) || (day > 31) || (month < 0) || (year < 0)
+		|| (secs < 0)) {
+	    return 0;
+	}
+
+	/*
+	 * Days since 1970-01-01, the inverse of the computation in
+	 * formatTime.
+	 */
+
+	int y = (month <= 2) ? year - 1 : year;
+	int era = y / 400;
+	int yoe = y - era * 400;
+	int doy = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+	int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+	long days = (long) era * 146097 + doe - 719468;
+	return (days * 86400 + secs) * 1000;
+    }
+
+    private static int
+    digits(String s, int i)
+    {
+	char a = s.charAt(i);
+	char b = s.charAt(i + 1);
+	if ((a < '0') || (a > '9') || (b < '0') || (b > '9')) {
+	    return -1;
+	}
+	return (a - '0') * 10 + (b - '0');
     }
 
     /**
@@ -372,6 +564,9 @@ public class HttpUtil
 	    case 413:	return "Request Entity Too Large";
 	    case 414:	return "Request-URI Too Large";
 	    case 415:	return "Unsupported Media Type";
+	    case 416:	return "Requested Range Not Satisfiable";
+	    case 417:	return "Expectation Failed";
+	    case 429:	return "Too Many Requests";
 	    case 500:	return "Server Error";
 	    case 501:	return "Not Implemented";
 	    case 502:	return "Bad Gateway";
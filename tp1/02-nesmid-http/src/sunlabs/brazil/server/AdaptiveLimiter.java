@@ -0,0 +1,125 @@
+package sunlabs.brazil.server;
+
+/**
+ * Limits the number of requests handled at once, adjusting the limit to
+ * the latency the server is actually delivering.
+ * <p>
+ * Each request is timed from the arrival of its request line until its
+ * response has been flushed.  While requests complete within the target
+ * latency and the limit is being used, the limit grows by about one per
+ * round of requests (additive increase).  When a request takes longer
+ * than the target, or fails, the limit is cut by a tenth, at most once
+ * per target interval (multiplicative decrease).  Requests beyond the
+ * limit are refused at once with a <code>503</code>, rather than queued
+ * until they time out.
+ * <p>
+ * If no target is configured, it is twice the baseline latency, which
+ * follows the fastest recent requests and drifts slowly upwards so a
+ * server whose work gets slower is not starved forever.
+ *
+ * @see	Server#adaptiveLimit
+ */
+public class AdaptiveLimiter
+{
+    private int min;
+    private int max;
+    private long target;
+
+    private double limit;
+    private int inFlight = 0;
+    private double baseline = -1;
+    private long lastDecrease = 0;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param	min
+     *		The lowest the limit may fall.
+     * @param	max
+     *		The highest the limit may rise.
+     * @param	target
+     *		The latency, in milliseconds, above which the limit is
+     *		cut, or <code>0</code> to derive it from the baseline.
+     */
+    public
+    AdaptiveLimiter(int min, int max, long target)
+    {
+	this.min = Math.max(min, 1);
+	this.max = Math.max(max, this.min);
+	this.target = target;
+	limit = Math.min(this.max, Math.max(this.min, 20));
+    }
+
+    /**
+     * Admits a request if the limit allows it.  Every admitted request
+     * must be followed by a call to {@link #release}.
+     *
+     * @return	<code>false</code> if the request should be refused.
+     */
+    public synchronized boolean
+    acquire()
+    {
+	if (inFlight >= (int) limit) {
+	    return false;
+	}
+	inFlight++;
+	return true;
+    }
+
+    /**
+     * Records the completion of an admitted request, and adjusts the
+     * limit.
+     *
+     * @param	latency
+     *		How long the request took, in milliseconds.
+     * @param	failed
+     *		<code>true</code> if the request did not complete normally.
+     */
+    public synchronized void
+    release(long latency, boolean failed)
+    {
+	inFlight--;
+
+	if ((baseline < 0) || (latency < baseline)) {
+	    baseline = latency;
+	} else {
+	    baseline += (latency - baseline) / 1000;
+	}
+	long threshold = (target > 0) ? target
+		: Math.max(2 * (long) baseline, 10);
+
+	if (failed || (latency > threshold)) {
+	    long now = System.currentTimeMillis();
+	    if (now - lastDecrease >= threshold) {
+		limit = Math.max(min, limit * 0.9);
+		lastDecrease = now;
+	    }
+	} else if (inFlight + 1 >= limit / 2) {
+	    limit = Math.min(max, limit + 1 / limit);
+	}
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public synchronized int
+    getLimit()
+    {
+	return (int) limit;
+    }
+
+    /**
+     * Returns the number of admitted requests not yet released.
+     */
+    public synchronized int
+    getInFlight()
+    {
+	return inFlight;
+    }
+
+    public String
+    toString()
+    {
+	return "limit=" + getLimit() + " inFlight=" + getInFlight();
+    }
+}
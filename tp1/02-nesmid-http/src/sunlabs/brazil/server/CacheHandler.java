@@ -0,0 +1,588 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import sunlabs.brazil.util.Counter;
+import sunlabs.brazil.util.http.MimeHeaders;
+
+/**
+ * Handler that keeps the responses of the handlers it wraps in memory,
+ * and answers the same requests from there until the responses expire.
+ * It is a {@link ChainHandler}: the wrapped handlers are listed by its
+ * <code>handlers</code> parameter, and are only called when the response
+ * isn't cached.
+ * <p>
+ * Only <code>GET</code> responses with status 200 and a body are kept,
+ * unless their headers forbid it (<code>Set-Cookie</code>,
+ * <code>Cache-Control: no-store</code>, <code>private</code> or
+ * <code>no-cache</code>, <code>Vary: *</code>), or they are sent in
+ * chunks.  They are found by URL, query and the request headers named by
+ * their <code>Vary</code> header, so a compressed response is only sent
+ * to clients that accept it.  A <code>HEAD</code> is answered from the
+ * response to a <code>GET</code>.  Requests with an
+ * <code>Authorization</code> header are passed on untouched, as are
+ * requests saying <code>Cache-Control: no-store</code>; with
+ * <code>no-cache</code>, the response is made afresh, then kept.
+ * <p>
+ * A response is kept with its headers already encoded, except for the
+ * ones {@link Request#sendHeaders} adds each time, so a hit costs little
+ * more than writing the bytes.
+ * <p>
+ * The cache is bounded by the bytes it holds.  When it is full, the
+ * least recently used response makes way for a new one, but only if the
+ * new one is asked for more often: how often each URL is asked for is
+ * estimated in a small table of counters, halved from time to time, so a
+ * scan through many URLs asked for once doesn't flush out the popular
+ * ones.
+ * <p>
+ * The following configuration parameters are used, in addition to the
+ * ones of <code>ChainHandler</code>:
+ * <dl class=props>
+ * <dt>size	<dd>The most bytes of responses kept.  Defaults to
+ *		1048576.
+ * <dt>maxEntry <dd>The largest response kept, in bytes.  Defaults to
+ *		65536.
+ * <dt>ttl	<dd>The seconds a response is kept.  Defaults to 60.
+ * <dt>ttls	<dd>A list of <i>url-prefix</i><code>=</code><i>seconds</i>,
+ *		for the URLs kept for another time than <code>ttl</code>.
+ *		The longest matching prefix wins; 0 seconds means the
+ *		responses are not kept.
+ * <dt>stats	<dd>If set, the URL at which the cache's counters are
+ *		served as plain text.
+ * </dl>
+ * For example:
+ * <pre>
+ * main.handlers=cache
+ * cache.class=sunlabs.brazil.server.CacheHandler
+ * cache.handlers=share hello
+ * cache.ttls=/file/=300 /hello/=0
+ * </pre>
+ */
+public class CacheHandler extends ChainHandler
+{
+    private static final String SIZE = "size";
+    private static final String MAX_ENTRY = "maxEntry";
+    private static final String TTL = "ttl";
+    private static final String TTLS = "ttls";
+    private static final String STATS = "stats";
+
+    /**
+     * The most URLs whose <code>Vary</code> headers are remembered.
+     */
+    private static final int MAX_VARIES = 1024;
+
+    public int size = 1048576;
+    public int maxEntry = 65536;
+    public int ttl = 60;
+    public String statsUrl;
+
+    private String[] ttlPrefixes = new String[0];
+    private int[] ttlSeconds = new int[0];
+
+    /**
+     * The responses, least recently used first, and the bytes they hold.
+     */
+    private LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+    private int bytes;
+
+    /**
+     * The names of the headers in the <code>Vary</code> header of each
+     * URL, for the URLs that have one.
+     */
+    private LinkedHashMap varies = new LinkedHashMap(64, 0.75f, true) {
+	protected boolean
+	removeEldestEntry(Map.Entry eldest)
+	{
+	    return size() > MAX_VARIES;
+	}
+    };
+
+    /**
+     * How often each key is asked for.
+     */
+    private FrequencySketch sketch;
+
+    /**
+     * Count of requests answered from the cache.
+     */
+    public Counter hitCount = new Counter();
+
+    /**
+     * Count of requests that could have been, but weren't.
+     */
+    public Counter missCount = new Counter();
+
+    /**
+     * Count of responses dropped to make room for others.
+     */
+    public volatile int evictCount = 0;
+
+    /**
+     * Count of responses not kept because the ones they would have
+     * displaced are asked for more often.
+     */
+    public volatile int rejectCount = 0;
+
+    /**
+     * Count of responses dropped once expired.
+     */
+    public volatile int expireCount = 0;
+
+    public boolean
+    init(Server server, String prefix)
+    {
+	if (super.init(server, prefix) == false) {
+	    return false;
+	}
+	try {
+	    String str = server.props.getProperty(prefix + SIZE);
+	    size = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + MAX_ENTRY);
+	    maxEntry = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + TTL);
+	    ttl = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	statsUrl = server.props.getProperty(prefix + STATS);
+
+	Vector prefixes = new Vector();
+	Vector seconds = new Vector();
+	StringTokenizer st = new StringTokenizer(
+		server.props.getProperty(prefix + TTLS, ""));
+	while (st.hasMoreTokens()) {
+	    String token = st.nextToken();
+	    int eq = token.lastIndexOf('=');
+	    try {
+		seconds.addElement(Integer.decode(token.substring(eq + 1)));
+		prefixes.addElement(token.substring(0, eq));
+	    } catch (Exception e) {
+		server.log(Server.LOG_WARNING, prefix, "bad ttl: " + token);
+	    }
+	}
+	ttlPrefixes = new String[prefixes.size()];
+	prefixes.copyInto(ttlPrefixes);
+	ttlSeconds = new int[seconds.size()];
+	for (int i = 0; i < ttlSeconds.length; i++) {
+	    ttlSeconds[i] = ((Integer) seconds.elementAt(i)).intValue();
+	}
+
+	/*
+	 * About eight counters for each response the cache might hold,
+	 * taking one of 1 KB as typical.
+	 */
+
+	sketch = new FrequencySketch(size / 128);
+	return true;
+    }
+
+    public boolean
+    respond(Request request)
+	throws IOException
+    {
+	if ((statsUrl != null) && request.url.equals(statsUrl)) {
+	    request.sendResponse(report(), "text/plain");
+	    return true;
+	}
+	if ((urlPrefix != null) && !request.url.startsWith(urlPrefix)) {
+	    return false;
+	}
+	boolean head = request.method.equals("HEAD");
+	String control = request.getRequestHeader("Cache-Control");
+	if ((!head && !request.method.equals("GET"))
+		|| (request.getRequestHeader("Authorization") != null)
+		|| contains(control, "no-store")) {
+	    return super.respond(request);
+	}
+
+	String base = request.url;
+	if ((request.query != null) && (request.query.length() > 0)) {
+	    base += "?" + request.query;
+	}
+	if (!contains(control, "no-cache")
+		&& !contains(request.getRequestHeader("Pragma"), "no-cache")) {
+	    Entry entry = get(base, request);
+	    if (entry != null) {
+		hitCount.increment();
+		request.sendCached(entry.code, entry.headers, entry.body);
+		return true;
+	    }
+	}
+	int seconds = ttl(request.url);
+	if (head || (seconds <= 0)) {
+	    return super.respond(request);
+	}
+	missCount.increment();
+
+	Request.HttpOutputStream out = request.out;
+	Capture capture = new Capture(request);
+	boolean handled;
+	request.out = capture;
+	try {
+	    handled = super.respond(request);
+	} finally {
+	    request.out = out;
+	}
+	if (!handled || request.detached || capture.passing
+		|| !capture.started) {
+	    capture.pass();
+	    return handled;
+	}
+
+	/*
+	 * The whole response was captured.  Keep it, unless its length
+	 * isn't the one it claims, and send it on.
+	 */
+
+	String length = request.responseHeaders.get("Content-Length");
+	String count = Integer.toString(capture.count);
+	if ((capture.count > 0) && ((length == null) || length.equals(count))) {
+	    byte[] body = new byte[capture.count];
+	    System.arraycopy(capture.buf, 0, body, 0, body.length);
+	    Entry entry = new Entry(capture.code, encode(request), body,
+		    System.currentTimeMillis() + seconds * 1000L);
+	    put(base, capture.vary, request, entry);
+	    request.responseHeaders.put("Content-Length", count);
+	}
+	capture.pass();
+	return true;
+    }
+
+    /**
+     * Finds the response to a request, if it is kept and fresh.  The
+     * request is counted, whether or not it is found.
+     */
+    private synchronized Entry
+    get(String base, Request request)
+    {
+	String key = key(base, (String[]) varies.get(base), request);
+	sketch.record(key);
+	Entry entry = (Entry) entries.get(key);
+	if ((entry != null) && (entry.expires <= System.currentTimeMillis())) {
+	    entries.remove(key);
+	    bytes -= entry.size;
+	    expireCount++;
+	    entry = null;
+	}
+	return entry;
+    }
+
+    /**
+     * Keeps a response, if it is asked for more often than the ones it
+     * would displace.
+     */
+    private synchronized void
+    put(String base, String[] vary, Request request, Entry entry)
+    {
+	if (vary == null) {
+	    varies.remove(base);
+	} else {
+	    varies.put(base, vary);
+	}
+	String key = key(base, vary, request);
+	entry.size = entry.headers.length + entry.body.length + key.length();
+	if (entry.size > size) {
+	    return;
+	}
+
+	Entry old = (Entry) entries.remove(key);
+	if (old != null) {
+	    bytes -= old.size;
+	}
+	long now = System.currentTimeMillis();
+	int frequency = sketch.frequency(key);
+	Iterator it = entries.entrySet().iterator();
+	while (bytes + entry.size > size) {
+	    Map.Entry eldest = (Map.Entry) it.next();
+	    Entry victim = (Entry) eldest.getValue();
+	    if (victim.expires <= now) {
+		expireCount++;
+	    } else if (frequency <= sketch.frequency(eldest.getKey())) {
+		rejectCount++;
+		return;
+	    } else {
+		evictCount++;
+	    }
+	    it.remove();
+	    bytes -= victim.size;
+	}
+	entries.put(key, entry);
+	bytes += entry.size;
+    }
+
+    /**
+     * Returns the key of a request: its URL and query, and the values of
+     * the headers the response varies on.
+     */
+    private static String
+    key(String base, String[] vary, Request request)
+    {
+	if (vary == null) {
+	    return base;
+	}
+	StringBuffer sb = new StringBuffer(base);
+	for (int i = 0; i < vary.length; i++) {
+	    String value = request.getRequestHeader(vary[i]);
+	    sb.append('\n').append((value == null) ? "" : value);
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Returns the seconds the responses to a URL are kept.
+     */
+    private int
+    ttl(String url)
+    {
+	int seconds = ttl;
+	int longest = -1;
+	for (int i = 0; i < ttlPrefixes.length; i++) {
+	    if ((ttlPrefixes[i].length() > longest)
+		    && url.startsWith(ttlPrefixes[i])) {
+		longest = ttlPrefixes[i].length();
+		seconds = ttlSeconds[i];
+	    }
+	}
+	return seconds;
+    }
+
+    /**
+     * Encodes the response headers, but the ones
+     * <code>sendHeaders</code> adds each time.
+     */
+    private static byte[]
+    encode(Request request)
+	throws IOException
+    {
+	StringBuffer sb = new StringBuffer();
+	MimeHeaders headers = request.responseHeaders;
+	int n = headers.size();
+	for (int i = 0; i < n; i++) {
+	    String key = headers.getKey(i);
+	    if (key.equalsIgnoreCase("Date")
+		    || key.equalsIgnoreCase("Server")
+		    || key.equalsIgnoreCase("Content-Length")
+		    || key.equalsIgnoreCase(request.connectionHeader)) {
+		continue;
+	    }
+	    sb.append(key).append(": ").append(headers.get(i)).append("\r\n");
+	}
+	return sb.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Returns <code>true</code> if a header has a token, ignoring case.
+     */
+    private static boolean
+    contains(String header, String token)
+    {
+	if (header == null) {
+	    return false;
+	}
+	StringTokenizer st = new StringTokenizer(header, ",");
+	while (st.hasMoreTokens()) {
+	    String str = st.nextToken().trim();
+	    int eq = str.indexOf('=');
+	    if (eq >= 0) {
+		str = str.substring(0, eq).trim();
+	    }
+	    if (str.equalsIgnoreCase(token)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Decides whether a response may be kept, from its status and
+     * headers.
+     *
+     * @return	The names of the headers it varies on, an empty array if
+     *		none, or <code>null</code> if it may not be kept.
+     */
+    private static String[]
+    cacheable(Request request)
+    {
+	MimeHeaders headers = request.responseHeaders;
+	String control = headers.get("Cache-Control");
+	if ((request.statusCode != 200)
+		|| (headers.get("Set-Cookie") != null)
+		|| (headers.get("Transfer-Encoding") != null)
+		|| contains(control, "no-store")
+		|| contains(control, "private")
+		|| contains(control, "no-cache")) {
+	    return null;
+	}
+	String vary = headers.get("Vary");
+	if (vary == null) {
+	    return new String[0];
+	}
+	Vector names = new Vector();
+	StringTokenizer st = new StringTokenizer(vary, ", \t");
+	while (st.hasMoreTokens()) {
+	    String name = st.nextToken();
+	    if (name.equals("*")) {
+		return null;
+	    }
+	    names.addElement(name);
+	}
+	String[] result = new String[names.size()];
+	names.copyInto(result);
+	return result;
+    }
+
+    /**
+     * Returns the counters of the cache, one per line.
+     */
+    public synchronized String
+    report()
+    {
+	StringBuffer sb = new StringBuffer();
+	sb.append("entries ").append(entries.size()).append('\n');
+	sb.append("bytes ").append(bytes).append('\n');
+	sb.append("hits ").append(hitCount.get()).append('\n');
+	sb.append("misses ").append(missCount.get()).append('\n');
+	sb.append("evictions ").append(evictCount).append('\n');
+	sb.append("rejections ").append(rejectCount).append('\n');
+	sb.append("expirations ").append(expireCount).append('\n');
+	return sb.toString();
+    }
+
+    /**
+     * A kept response.
+     */
+    static class Entry
+    {
+	int code;
+	byte[] headers;
+	byte[] body;
+	long expires;
+	int size;
+
+	Entry(int code, byte[] headers, byte[] body, long expires)
+	{
+	    this.code = code;
+	    this.headers = headers;
+	    this.body = body;
+	    this.expires = expires;
+	}
+    }
+
+    /**
+     * Stands in for the client's stream while the wrapped handlers
+     * respond, and holds on to the response.  As soon as it turns out
+     * the response can't be kept, what was held is sent, and the rest
+     * goes straight through.
+     */
+    class Capture
+	extends Request.HttpOutputStream
+    {
+	Request request;
+	Request.HttpOutputStream real;
+
+	byte[] buf;
+	int count;
+	int code;
+	String[] vary;
+
+	/**
+	 * <code>true</code> once the headers have been sent to this stream.
+	 */
+	boolean started;
+
+	/**
+	 * <code>true</code> once the response goes to the client.
+	 */
+	boolean passing;
+
+	private byte[] one = new byte[1];
+
+	Capture(Request request)
+	{
+	    super(request.out);
+	    this.request = request;
+	    this.real = request.out;
+	}
+
+	public void
+	sendHeaders(Request request)
+	    throws IOException
+	{
+	    if (started || passing
+		    || ((vary = cacheable(request)) == null)) {
+		pass();
+		real.sendHeaders(request);
+		return;
+	    }
+	    started = true;
+	    code = request.statusCode;
+	    buf = new byte[Math.min(maxEntry, 4096)];
+	}
+
+	public void
+	write(int b)
+	    throws IOException
+	{
+	    one[0] = (byte) b;
+	    write(one, 0, 1);
+	}
+
+	public void
+	write(byte[] b, int off, int len)
+	    throws IOException
+	{
+	    if (!passing && (!started || (count + len > maxEntry))) {
+		pass();
+	    }
+	    if (passing) {
+		real.write(b, off, len);
+		return;
+	    }
+	    if (count + len > buf.length) {
+		byte[] tmp = new byte[Math.min(maxEntry,
+			Math.max(buf.length * 2, count + len))];
+		System.arraycopy(buf, 0, tmp, 0, count);
+		buf = tmp;
+	    }
+	    System.arraycopy(b, off, buf, count, len);
+	    count += len;
+	}
+
+	/**
+	 * Sends the response on: what a handler flushes, such as the head
+	 * of a response it is about to take the socket away with, must
+	 * reach the client now, so it can't be kept.
+	 */
+	public void
+	flush()
+	    throws IOException
+	{
+	    pass();
+	    real.flush();
+	}
+
+	/**
+	 * Sends what was held, and lets the rest through.
+	 */
+	void
+	pass()
+	    throws IOException
+	{
+	    if (passing) {
+		return;
+	    }
+	    passing = true;
+	    if (started) {
+		real.sendHeaders(request);
+		real.write(buf, 0, count);
+	    }
+	    buf = null;
+	}
+    }
+}
@@ -288,6 +288,9 @@ public class ChainHandler implements Handler {
 					+ names[i]);
 
 			if (handlers[i].respond(request)) {
+				if (request.handledBy == null) {
+					request.handledBy = names[i];
+				}
 				if (report != null) {
 					request.props.put(report, names[i]);
 				}
@@ -0,0 +1,370 @@
+package sunlabs.brazil.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with the <code>gzip</code> or
+ * <code>deflate</code> content coding, for clients that accept one in
+ * their <code>Accept-Encoding</code> header.  Only text types, such as
+ * HTML, XML and CSS, are compressed; the others are usually compressed
+ * already.
+ * <p>
+ * A <code>Deflater</code> holds a good deal of native memory and is slow
+ * to set up, so the compressing streams, each with its
+ * <code>Deflater</code> and buffer, are pooled and reused from one
+ * response to the next.
+ *
+ * @see	Server#compress
+ */
+public class Compressor
+{
+    /**
+     * The types compressed by default.  A type matches if it starts with
+     * one of these.
+     */
+    public static final String[] TYPES = {
+	"text/html", "text/plain", "text/css", "text/xml", "text/csv",
+	"text/javascript", "application/xml", "application/xhtml+xml",
+	"application/json", "application/javascript", "image/svg+xml"
+    };
+
+    private static final byte[] GZIP_HEADER = {
+	(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private int level;
+    private int minSize;
+    private String[] types;
+    private ArrayBlockingQueue gzipPool;
+    private ArrayBlockingQueue deflatePool;
+
+    /**
+     * Creates a compressor.
+     *
+     * @param	level
+     *		The compression level, from <code>1</code> (fastest) to
+     *		<code>9</code> (smallest).
+     * @param	minSize
+     *		The smallest body, in bytes, worth compressing.
+     * @param	types
+     *		The prefixes of the types to compress, or <code>null</code>
+     *		for {@link #TYPES}.
+     * @param	poolSize
+     *		The most idle streams of each coding kept for reuse.
+     */
+    public
+    Compressor(int level, int minSize, String[] types, int poolSize)
+    {
+	this.level = Math.max(Deflater.BEST_SPEED,
+		Math.min(level, Deflater.BEST_COMPRESSION));
+	this.minSize = minSize;
+	this.types = (types == null) ? TYPES : types;
+	gzipPool = new ArrayBlockingQueue(Math.max(poolSize, 1));
+	deflatePool = new ArrayBlockingQueue(Math.max(poolSize, 1));
+    }
+
+    /**
+     * Decides whether to compress a response.  Partial content is never
+     * compressed, as its <code>Content-Range</code> counts the bytes of
+     * the file as it is.  If the server might compress this type of
+     * response, <code>Vary: Accept-Encoding</code> is added to it,
+     * whatever the client accepts, so caches keep the two versions
+     * apart.
+     *
+     * @param	request
+     *		The request being answered.
+     * @param	type
+     *		The type of the response, or <code>null</code> for its
+     *		<code>Content-Type</code> header.
+     * @param	code
+     *		The status of the response, or &lt; 0 for its current
+     *		status.
+     * @param	length
+     *		The length of the body, or &lt; 0 if it isn't known.
+     *
+     * @return	The content coding to use, <code>"gzip"</code> or
+     *		<code>"deflate"</code>, or <code>null</code> to send the body
+     *		as it is.
+     */
+    public String
+    choose(Request request, String type, int code, int length)
+    {
+	if (code < 0) {
+	    code = request.statusCode;
+	}
+	if ((code < 200) || (code == 204) || (code == 206) || (code == 304)
+		|| ((length >= 0) && (length < minSize))
+		|| (request.responseHeaders.get("Content-Encoding") != null)
+		|| (request.responseHeaders.get("Content-Range") != null)) {
+	    return null;
+	}
+	if (type == null) {
+	    type = request.responseHeaders.get("Content-Type");
+	}
+	if ((type == null) || (matches(type) == false)) {
+	    return null;
+	}
+
+	String vary = request.responseHeaders.get("Vary");
+	if (vary == null) {
+	    request.responseHeaders.put("Vary", "Accept-Encoding");
+	} else if (vary.indexOf("Accept-Encoding") < 0) {
+	    request.responseHeaders.put("Vary", vary + ", Accept-Encoding");
+	}
+	if (request.method.equals("HEAD")) {
+	    return null;
+	}
+	return accepted(request.getRequestHeader("Accept-Encoding"));
+    }
+
+    private boolean
+    matches(String type)
+    {
+	for (int i = 0; i < types.length; i++) {
+	    if (type.regionMatches(true, 0, types[i], 0, types[i].length())) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Picks a coding from an <code>Accept-Encoding</code> header,
+     * <code>gzip</code> rather than <code>deflate</code> if both are
+     * equally welcome.
+     */
+    static String
+    accepted(String header)
+    {
+	if (header == null) {
+	    return null;
+	}
+	float gzip = -1;
+	float deflate = -1;
+	float any = -1;
+	StringTokenizer st = new StringTokenizer(header, ",");
+	while (st.hasMoreTokens()) {
+	    String token = st.nextToken();
+	    float q = 1;
+	    int semi = token.indexOf(';');
+	    if (semi >= 0) {
+		int eq = token.indexOf('=', semi);
+		try {
+		    q = Float.parseFloat(token.substring(eq + 1).trim());
+		} catch (Exception e) {
+		    q = 0;
+		}
+		token = token.substring(0, semi);
+	    }
+	    token = token.trim();
+	    if (token.equalsIgnoreCase("gzip")
+		    || token.equalsIgnoreCase("x-gzip")) {
+		gzip = q;
+	    } else if (token.equalsIgnoreCase("deflate")) {
+		deflate = q;
+	    } else if (token.equals("*")) {
+		any = q;
+	    }
+	}
+	if (gzip < 0) {
+	    gzip = any;
+	}
+	if (deflate < 0) {
+	    deflate = any;
+	}
+	if ((gzip > 0) && (gzip >= deflate)) {
+	    return "gzip";
+	} else if (deflate > 0) {
+	    return "deflate";
+	}
+	return null;
+    }
+
+    /**
+     * Compresses a body held in memory.
+     *
+     * @param	buf
+     *		The body.
+     * @param	off
+     *		Where it starts in <code>buf</code>.
+     * @param	len
+     *		Its length.
+     * @param	coding
+     *		<code>"gzip"</code> or <code>"deflate"</code>.
+     *
+     * @return	The compressed body.
+     */
+    public byte[]
+    compress(byte[] buf, int off, int len, String coding)
+	throws IOException
+    {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 3 + 32);
+	CompressedOutputStream out = open(bytes, coding);
+	out.write(buf, off, len);
+	out.finish();
+	return bytes.toByteArray();
+    }
+
+    /**
+     * Gets a stream that compresses what is written to it.  When the
+     * body is done, {@link CompressedOutputStream#finish} must be called
+     * to complete it and hand the stream back.
+     *
+     * @param	out
+     *		The stream to write the compressed body to.
+     * @param	coding
+     *		<code>"gzip"</code> or <code>"deflate"</code>.
+     */
+    public CompressedOutputStream
+    open(OutputStream out, String coding)
+	throws IOException
+    {
+	boolean gzip = coding.equals("gzip");
+	ArrayBlockingQueue pool = gzip ? gzipPool : deflatePool;
+	CompressedOutputStream z = (CompressedOutputStream) pool.poll();
+	if (z == null) {
+	    z = new CompressedOutputStream(new Deflater(level, gzip), gzip,
+		    pool);
+	}
+	z.start(out);
+	return z;
+    }
+
+    /**
+     * A stream that compresses a body with a pooled
+     * <code>Deflater</code>: raw deflate inside a gzip header and
+     * trailer, or the zlib format that HTTP calls <code>deflate</code>.
+     */
+    public static class CompressedOutputStream
+	extends FilterOutputStream
+    {
+	private Deflater def;
+	private ArrayBlockingQueue pool;
+	private boolean gzip;
+	private CRC32 crc;
+	private byte[] buf = new byte[4096];
+	private byte[] one = new byte[1];
+	private boolean open;
+
+	CompressedOutputStream(Deflater def, boolean gzip,
+		ArrayBlockingQueue pool)
+	{
+	    super(null);
+	    this.def = def;
+	    this.gzip = gzip;
+	    this.pool = pool;
+	    if (gzip) {
+		crc = new CRC32();
+	    }
+	}
+
+	void
+	start(OutputStream out)
+	    throws IOException
+	{
+	    this.out = out;
+	    this.open = true;
+	    if (gzip) {
+		out.write(GZIP_HEADER);
+	    }
+	}
+
+	public void
+	write(int b)
+	    throws IOException
+	{
+	    one[0] = (byte) b;
+	    write(one, 0, 1);
+	}
+
+	public void
+	write(byte[] b, int off, int len)
+	    throws IOException
+	{
+	    if (open == false) {
+		throw new IOException("stream finished");
+	    }
+	    if (len == 0) {
+		return;
+	    }
+	    if (gzip) {
+		crc.update(b, off, len);
+	    }
+	    def.setInput(b, off, len);
+	    while (def.needsInput() == false) {
+		deflate();
+	    }
+	}
+
+	/**
+	 * Completes the body, and hands the stream back to be reused.  The
+	 * underlying stream is not closed.
+	 */
+	public void
+	finish()
+	    throws IOException
+	{
+	    if (open == false) {
+		return;
+	    }
+	    open = false;
+	    try {
+		def.finish();
+		while (def.finished() == false) {
+		    deflate();
+		}
+		if (gzip) {
+		    int size = (int) def.getBytesRead();
+		    int sum = (int) crc.getValue();
+		    for (int i = 0; i < 4; i++) {
+			buf[i] = (byte) (sum >> (i * 8));
+			buf[i + 4] = (byte) (size >> (i * 8));
+		    }
+		    out.write(buf, 0, 8);
+		}
+	    } finally {
+		release();
+	    }
+	}
+
+	/**
+	 * Same as <code>finish</code>.
+	 */
+	public void
+	close()
+	    throws IOException
+	{
+	    finish();
+	}
+
+	private void
+	deflate()
+	    throws IOException
+	{
+	    int n = def.deflate(buf, 0, buf.length);
+	    if (n > 0) {
+		out.write(buf, 0, n);
+	    }
+	}
+
+	private void
+	release()
+	{
+	    out = null;
+	    def.reset();
+	    if (gzip) {
+		crc.reset();
+	    }
+	    if (pool.offer(this) == false) {
+		def.end();
+	    }
+	}
+    }
+}
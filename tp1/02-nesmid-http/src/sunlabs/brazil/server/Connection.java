@@ -59,15 +59,52 @@ class Connection implements Runnable
      */
     Request request;
 
+    /**
+     * When this connection was last parked, waiting for its next request.
+     */
+    long idleSince;
+
+    /**
+     * Set while a request read from this connection is being handled.
+     */
+    volatile boolean inRequest = false;
+
+    /**
+     * Set between requests, once a response has been sent and the
+     * connection is kept alive for the next one.
+     */
+    volatile boolean idle = false;
+
+    /**
+     * Set if the request's input flushes the output before it blocks, so
+     * kept-alive responses need not be flushed as soon as they are sent.
+     */
+    boolean lazyFlush;
+
+    /**
+     * The longest a closing connection keeps reading what the client is
+     * still sending, in milliseconds.
+     */
+    static final int LINGER = 2000;
+
     /**
      * Constructs a new Connection and starts it running.
      */
     Connection(Server server, Socket sock)
+    {
+	this(server, sock, new Request(server, sock));
+	lazyFlush = true;
+    }
+
+    /**
+     * Constructs a new Connection for a request that has already been
+     * set up, possibly reading from something other than the socket.
+     */
+    Connection(Server server, Socket sock, Request request)
     {
 	this.server = server;
 	this.sock = sock;
-
-	request = new Request(server, sock);
+	this.request = request;
     }
 
     /**
@@ -78,27 +115,31 @@ class Connection implements Runnable
     public void
     run()
     {
+	boolean parked = false;
+	server.enter(this);
 	try 
 	{
 	    sock.setSoTimeout(server.timeout);
 
 	    while (request.shouldKeepAlive()) 
 	    {
-	    	if (request.getRequest() == false) 
+	    	if (serve() == false) 
 	    	{
 	    		break;
 	    	}
-	    	
-	    	server.requestCount++;
-	    	
-	    	if (server.handler.respond(request) == false) 
-	    	{
-	    		request.sendError(404, null, request.url);
-	    	}
-	    	
-	    	request.out.flush();
-	    	
-	    	server.log(Server.LOG_LOG, null, "request done");
+
+		/*
+		 * If the next request hasn't started to arrive, give up
+		 * this thread until it does.
+		 */
+
+		if ((server.parker != null) && request.shouldKeepAlive()
+			&& (request.in.available() == 0)) {
+		    request.out.flush();
+		    parked = true;
+		    server.parker.park(this);
+		    return;
+		}
 	    }
 	} 
 	catch (InterruptedIOException e) {
@@ -143,13 +184,120 @@ class Connection implements Runnable
 	    e.printStackTrace();
 	    request.sendError(500, e.toString(), "unexpected error");
 	} finally {
-	    server.log(Server.LOG_INFORMATIONAL, null, "socket close");
-	    try {
-	    	request.out.flush();
-	    } catch (IOException e) {}
-	    try {
-		sock.close();
-	    } catch (IOException e) {}
+	    server.leave(this);
+	    if (!parked && !request.detached) {
+		close();
+	    }
+	}
+    }
+
+    /**
+     * Reads one HTTP request and passes it to the server's handler.
+     * Once the server is draining, the response asks the client to close
+     * the connection.  With <code>lazyFlush</code>, a kept-alive response
+     * is left buffered while a pipelined request is waiting, to be
+     * coalesced with its response.
+     *
+     * @return	<code>false</code> if no request could be read.
+     */
+    boolean
+    serve()
+	throws IOException
+    {
+	if (request.getRequest() == false) {
+	    return false;
+	}
+	idle = false;
+	inRequest = true;
+	boolean admitted = false;
+	boolean done = false;
+	try {
+	    if (server.draining) {
+		request.keepAlive = false;
+	    }
+	    server.requestCount++;
+	    if (server.throttled(request)) {
+		/* answered with a 429 */
+	    } else if ((server.limiter != null)
+		    && !(admitted = server.limiter.acquire())) {
+		server.shed(request);
+	    } else if (server.handler.respond(request) == false) {
+		request.sendError(404, null, request.url);
+	    }
+	    request.finishBody();
+	    if (!lazyFlush || !request.shouldKeepAlive()) {
+		request.out.flush();
+	    }
+	    done = true;
+	} finally {
+	    inRequest = false;
+	    if (admitted) {
+		server.limiter.release(
+			System.currentTimeMillis() - request.startMillis, !done);
+	    }
 	}
+	server.metrics.record(request.handledBy, request.statusCode,
+		(System.nanoTime() - request.startNanos) / 1000,
+		request.in.bytesRead, request.out.bytesWritten);
+	server.log(Server.LOG_LOG, null, "request done");
+
+	/*
+	 * A drain closes idle sockets without flushing them, so the
+	 * connection only becomes idle once its response is sent.  If the
+	 * next request has started to arrive, the response is left for
+	 * that one's to carry, and the connection stays busy.
+	 */
+
+	if (lazyFlush && request.shouldKeepAlive()) {
+	    if (request.in.available() > 0) {
+		return true;
+	    }
+	    request.out.flush();
+	}
+	idle = true;
+	return true;
+    }
+
+    /**
+     * Flushes any pending output and closes the socket.
+     */
+    void
+    close()
+    {
+	server.log(Server.LOG_INFORMATIONAL, null, "socket close");
+	try {
+	    request.out.flush();
+	} catch (IOException e) {}
+	if (request.linger) {
+	    linger();
+	}
+	try {
+	    sock.close();
+	} catch (IOException e) {}
+    }
+
+    /**
+     * Reads and discards the rest of an upload the request left unread,
+     * after telling the client no more is coming, until the client closes
+     * its end or <code>LINGER</code> milliseconds have passed.
+     */
+    private void
+    linger()
+    {
+	try {
+	    sock.shutdownOutput();
+	    long deadline = System.currentTimeMillis() + LINGER;
+	    byte[] buf = new byte[server.bufsize];
+	    while (true) {
+		int left = (int) (deadline - System.currentTimeMillis());
+		if (left <= 0) {
+		    break;
+		}
+		sock.setSoTimeout(left);
+		if (request.in.read(buf) < 0) {
+		    break;
+		}
+	    }
+	} catch (IOException e) {}
     }
 }
@@ -0,0 +1,448 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import sunlabs.brazil.util.Counter;
+
+/**
+ * Pushes server-sent events to the clients subscribed to them.  Any
+ * thread may {@link #publish} an event to a topic; a single thread then
+ * writes it to every subscriber of that topic.
+ * <p>
+ * A subscriber is only a socket and a small queue of events, not a
+ * thread.  The writer thread watches all the sockets with a
+ * <code>Selector</code> and writes to them without blocking, so a client
+ * that reads slowly holds up no one else.  Each event is encoded once,
+ * and the same bytes are queued for all its subscribers.
+ * <p>
+ * A subscriber's queue holds at most <code>queueSize</code> events.
+ * When an event finds it full, the <code>policy</code> says what gives:
+ * <dl>
+ * <dt> {@link #DROP_OLDEST}
+ * <dd> the oldest event not yet started is dropped, so the client
+ *	catches up with the latest ones
+ * <dt> {@link #DROP_NEWEST}
+ * <dd> the new event is dropped
+ * <dt> {@link #CLOSE}
+ * <dd> the client is disconnected, and may reconnect when it can keep
+ *	up
+ * </dl>
+ * A comment line is sent to idle subscribers every
+ * <code>heartbeat</code> milliseconds, so proxies keep the connection
+ * open and the sockets of clients that went away are found and closed.
+ *
+ * @see	EventSourceHandler
+ */
+public class EventHub
+    extends Thread
+{
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+    public static final int CLOSE = 2;
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes();
+
+    Server server;
+    Selector selector;
+    int queueSize;
+    int policy;
+    long heartbeat;
+
+    /**
+     * Events and subscribers handed to the writer thread.
+     */
+    private ConcurrentLinkedQueue events = new ConcurrentLinkedQueue();
+    private ConcurrentLinkedQueue joining = new ConcurrentLinkedQueue();
+
+    /**
+     * The subscribers of each topic.  Only used by the writer thread.
+     */
+    private HashMap topics = new HashMap();
+
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    /**
+     * Count of events published.
+     */
+    public Counter publishCount = new Counter();
+
+    /**
+     * Count of events dropped from, or not queued for, slow subscribers.
+     */
+    public volatile int dropCount = 0;
+
+    /**
+     * Count of subscribers disconnected for being too slow.
+     */
+    public volatile int slowCount = 0;
+
+    /**
+     * The number of subscribers.
+     */
+    public volatile int subscriberCount = 0;
+
+    /**
+     * Creates the writer thread.  It must be started.
+     *
+     * @param	server
+     *		The server the subscribers are clients of.  The thread
+     *		stops once it is draining.
+     * @param	name
+     *		The name of the thread.
+     * @param	queueSize
+     *		The most events queued for each subscriber.
+     * @param	policy
+     *		What to do when a subscriber's queue is full.
+     * @param	heartbeat
+     *		How long, in milliseconds, a subscriber may go without
+     *		hearing from the server.
+     */
+    public
+    EventHub(Server server, String name, int queueSize, int policy,
+	    long heartbeat)
+	throws IOException
+    {
+	super(server.group, name);
+	setDaemon(true);
+	this.server = server;
+	this.queueSize = Math.max(queueSize, 1);
+	this.policy = policy;
+	this.heartbeat = Math.max(heartbeat, 1000);
+	selector = Selector.open();
+    }
+
+    /**
+     * Publishes an event to the current subscribers of a topic.  The
+     * event is encoded at once, and written by the writer thread.
+     *
+     * @param	topic
+     *		The topic.
+     * @param	event
+     *		The type of the event, or <code>null</code> for the
+     *		default type, "message".
+     * @param	data
+     *		The data of the event.  It may span several lines.
+     */
+    public void
+    publish(String topic, String event, String data)
+    {
+	events.add(new Object[] {topic, encode(event, data)});
+	publishCount.increment();
+	selector.wakeup();
+    }
+
+    /**
+     * Adds a subscriber.  The response headers must already have been
+     * sent, and the socket taken away from the server.
+     *
+     * @param	topic
+     *		The topic the subscriber gets the events of.
+     * @param	sock
+     *		The client's socket, which must have a channel.
+     * @param	first
+     *		Bytes to send before any event, or <code>null</code>.
+     */
+    public void
+    subscribe(String topic, Socket sock, byte[] first)
+    {
+	Subscriber sub = new Subscriber(topic, sock.getChannel());
+	if (first != null) {
+	    sub.offer(first);
+	}
+	joining.add(sub);
+	selector.wakeup();
+    }
+
+    /**
+     * Encodes an event, each line of the data as a "data:" field.
+     */
+    static byte[]
+    encode(String event, String data)
+    {
+	StringBuffer sb = new StringBuffer(data.length() + 32);
+	if (event != null) {
+	    sb.append("event: ").append(event).append('\n');
+	}
+	int start = 0;
+	int length = data.length();
+	while (true) {
+	    int end = start;
+	    while ((end < length) && (data.charAt(end) != '\n')
+		    && (data.charAt(end) != '\r')) {
+		end++;
+	    }
+	    sb.append("data: ").append(data, start, end).append('\n');
+	    if (end >= length) {
+		break;
+	    }
+	    if ((data.charAt(end) == '\r') && (end + 1 < length)
+		    && (data.charAt(end + 1) == '\n')) {
+		end++;
+	    }
+	    start = end + 1;
+	}
+	sb.append('\n');
+	try {
+	    return sb.toString().getBytes("UTF-8");
+	} catch (IOException e) {
+	    return sb.toString().getBytes();
+	}
+    }
+
+    public void
+    run()
+    {
+	long lastBeat = System.currentTimeMillis();
+	try {
+	    while (!server.draining) {
+		selector.select(1000);
+
+		Subscriber sub;
+		while ((sub = (Subscriber) joining.poll()) != null) {
+		    join(sub);
+		}
+
+		Object[] event;
+		while ((event = (Object[]) events.poll()) != null) {
+		    ArrayList subs = (ArrayList) topics.get(event[0]);
+		    if (subs == null) {
+			continue;
+		    }
+		    for (int i = subs.size(); --i >= 0; ) {
+			sub = (Subscriber) subs.get(i);
+			if (sub.offer((byte[]) event[1])) {
+			    sub.write();
+			}
+		    }
+		}
+
+		Iterator it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+		    SelectionKey key = (SelectionKey) it.next();
+		    it.remove();
+		    sub = (Subscriber) key.attachment();
+		    if (key.isValid() && key.isReadable()) {
+			sub.read();
+		    }
+		    if (key.isValid() && key.isWritable()) {
+			sub.write();
+		    }
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - lastBeat >= heartbeat) {
+		    beat(now);
+		    lastBeat = now;
+		}
+	    }
+	} catch (IOException e) {
+	    server.log(Server.LOG_WARNING, getName(), "failed: " + e);
+	} finally {
+	    Object[] keys = selector.keys().toArray();
+	    for (int i = 0; i < keys.length; i++) {
+		((Subscriber) ((SelectionKey) keys[i]).attachment()).close();
+	    }
+	    Subscriber sub;
+	    while ((sub = (Subscriber) joining.poll()) != null) {
+		sub.close();
+	    }
+	    try {
+		selector.close();
+	    } catch (IOException e) {}
+	}
+    }
+
+    private void
+    join(Subscriber sub)
+    {
+	try {
+	    sub.channel.configureBlocking(false);
+	    sub.key = sub.channel.register(selector, SelectionKey.OP_READ,
+		    sub);
+	} catch (IOException e) {
+	    sub.close();
+	    return;
+	}
+	ArrayList subs = (ArrayList) topics.get(sub.topic);
+	if (subs == null) {
+	    subs = new ArrayList();
+	    topics.put(sub.topic, subs);
+	}
+	subs.add(sub);
+	subscriberCount++;
+	sub.write();
+    }
+
+    /**
+     * Sends a heartbeat to the subscribers that have heard nothing for a
+     * while.
+     */
+    private void
+    beat(long now)
+    {
+	Object[] keys = selector.keys().toArray();
+	for (int i = 0; i < keys.length; i++) {
+	    Subscriber sub = (Subscriber) ((SelectionKey) keys[i]).attachment();
+	    if ((sub.count == 0) && (now - sub.lastWrite >= heartbeat)) {
+		sub.offer(HEARTBEAT);
+		sub.write();
+	    }
+	}
+    }
+
+    /**
+     * One client.  Its events are kept in a ring of at most
+     * <code>queueSize</code> entries, the first one being written.
+     */
+    class Subscriber
+    {
+	String topic;
+	SocketChannel channel;
+	SelectionKey key;
+
+	byte[][] ring = new byte[queueSize][];
+	int head;
+	int count;
+
+	/**
+	 * The event being written.
+	 */
+	ByteBuffer current;
+	long lastWrite = System.currentTimeMillis();
+	boolean closed;
+
+	Subscriber(String topic, SocketChannel channel)
+	{
+	    this.topic = topic;
+	    this.channel = channel;
+	}
+
+	/**
+	 * Queues an event, applying the policy if the queue is full.
+	 *
+	 * @return	<code>false</code> if the event was not queued.
+	 */
+	boolean
+	offer(byte[] event)
+	{
+	    if (closed) {
+		return false;
+	    }
+	    if (count == ring.length) {
+		if (policy == CLOSE) {
+		    slowCount++;
+		    server.log(Server.LOG_INFORMATIONAL, topic,
+			    "slow event subscriber");
+		    close();
+		    return false;
+		}
+		dropCount++;
+		if (policy == DROP_NEWEST) {
+		    return false;
+		}
+
+		/*
+		 * Drop the oldest event, unless it is partly written; then
+		 * the one after it.
+		 */
+
+		if (current == null) {
+		    ring[head] = null;
+		    head = (head + 1) % ring.length;
+		} else if (count > 1) {
+		    int second = (head + 1) % ring.length;
+		    ring[second] = ring[head];
+		    ring[head] = null;
+		    head = second;
+		} else {
+		    return false;
+		}
+		count--;
+	    }
+	    ring[(head + count) % ring.length] = event;
+	    count++;
+	    return true;
+	}
+
+	/**
+	 * Writes as much of the queue as the socket takes, and waits for
+	 * it to drain if it is full.
+	 */
+	void
+	write()
+	{
+	    if ((key == null) || closed) {
+		return;
+	    }
+	    try {
+		while (count > 0) {
+		    if (current == null) {
+			current = ByteBuffer.wrap(ring[head]);
+		    }
+		    channel.write(current);
+		    if (current.hasRemaining()) {
+			key.interestOps(SelectionKey.OP_READ
+				| SelectionKey.OP_WRITE);
+			return;
+		    }
+		    current = null;
+		    ring[head] = null;
+		    head = (head + 1) % ring.length;
+		    count--;
+		    lastWrite = System.currentTimeMillis();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	    } catch (IOException e) {
+		close();
+	    }
+	}
+
+	/**
+	 * Reads and ignores whatever the client sends, to find out when it
+	 * closes the connection.
+	 */
+	void
+	read()
+	{
+	    try {
+		scratch.clear();
+		if (channel.read(scratch) < 0) {
+		    close();
+		}
+	    } catch (IOException e) {
+		close();
+	    }
+	}
+
+	void
+	close()
+	{
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    if (key != null) {
+		key.cancel();
+		ArrayList subs = (ArrayList) topics.get(topic);
+		if (subs != null) {
+		    subs.remove(this);
+		    if (subs.isEmpty()) {
+			topics.remove(topic);
+		    }
+		}
+		subscriberCount--;
+	    }
+	    try {
+		channel.close();
+	    } catch (IOException e) {}
+	}
+    }
+}
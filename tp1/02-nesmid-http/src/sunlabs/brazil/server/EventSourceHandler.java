@@ -0,0 +1,162 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+
+/**
+ * Handler that streams server-sent events (<code>text/event-stream</code>)
+ * to browsers and other clients, so they are told of updates, such as new
+ * sensor readings, instead of polling for them.
+ * <p>
+ * A <code>GET</code> of <i>prefix</i><i>topic</i> subscribes the client to
+ * the events of <i>topic</i>.  The socket is then taken away from the
+ * server and handed to an {@link EventHub}, which writes the events of all
+ * the subscribers from one thread; no thread is held per subscriber.
+ * The hub is kept in the server properties as <i>handler-prefix</i>
+ * <code>hub</code>, for other handlers and server code to publish to:
+ * <pre>
+ * EventHub hub = EventSourceHandler.getHub(server, "events.");
+ * hub.publish("temperature", null, "21.5");
+ * </pre>
+ * The following configuration parameters are used:
+ * <dl class=props>
+ * <dt>prefix	<dd>The URL prefix of the topics.  Defaults to
+ *		<code>/events/</code>.
+ * <dt>queue	<dd>The most events queued for a subscriber that reads
+ *		slowly.  Defaults to 64.
+ * <dt>policy	<dd>What to do when a subscriber's queue is full:
+ *		<code>drop-oldest</code> (the default),
+ *		<code>drop-newest</code> or <code>close</code>.
+ * <dt>heartbeat <dd>Seconds between the comments sent to idle
+ *		subscribers.  Defaults to 15.
+ * <dt>retry	<dd>If set, the milliseconds a client should wait before
+ *		reconnecting, sent to each new subscriber.
+ * <dt>post	<dd>If present, a <code>POST</code> to a topic publishes its
+ *		content, if any, as an event, of the type given by the
+ *		<code>event</code> query parameter if any.
+ * </dl>
+ * The client sockets must have channels: the server must be a
+ * {@link NioServer}, or have {@link Server#channels} set.  Otherwise the
+ * handler fails to initialize.
+ */
+public class EventSourceHandler implements Handler
+{
+    private static final String PREFIX = "prefix";
+    private static final String QUEUE = "queue";
+    private static final String POLICY = "policy";
+    private static final String HEARTBEAT = "heartbeat";
+    private static final String RETRY = "retry";
+    private static final String POST = "post";
+    private static final String HUB = "hub";
+
+    public String urlPrefix = "/events/";
+
+    EventHub hub;
+    boolean post;
+    byte[] retry;
+
+    public boolean
+    init(Server server, String prefix)
+    {
+	urlPrefix = server.props.getProperty(prefix + PREFIX, urlPrefix);
+	post = (server.props.getProperty(prefix + POST) != null);
+
+	int queue = 64;
+	int heartbeat = 15;
+	try {
+	    String str = server.props.getProperty(prefix + QUEUE);
+	    queue = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + HEARTBEAT);
+	    heartbeat = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + RETRY);
+	    retry = ("retry: " + Integer.decode(str) + "\n\n").getBytes();
+	} catch (Exception e) {}
+
+	int policy = EventHub.DROP_OLDEST;
+	String str = server.props.getProperty(prefix + POLICY, "drop-oldest");
+	if (str.equals("drop-newest")) {
+	    policy = EventHub.DROP_NEWEST;
+	} else if (str.equals("close")) {
+	    policy = EventHub.CLOSE;
+	} else if (!str.equals("drop-oldest")) {
+	    server.log(Server.LOG_WARNING, prefix, "unknown policy: " + str);
+	}
+
+	if ((server.listen != null) && (server.listen.getChannel() == null)) {
+	    server.log(Server.LOG_ERROR, prefix,
+		    "needs sockets with channels: set \"channels\"");
+	    return false;
+	}
+	try {
+	    hub = new EventHub(server, server.prefix + prefix + "events",
+		    queue, policy, heartbeat * 1000L);
+	} catch (IOException e) {
+	    server.log(Server.LOG_ERROR, prefix, "Can't start: " + e);
+	    return false;
+	}
+	hub.start();
+	server.props.put(prefix + HUB, hub);
+	return true;
+    }
+
+    /**
+     * Returns the hub of an <code>EventSourceHandler</code>.
+     *
+     * @param	server
+     *		The server the handler belongs to.
+     * @param	prefix
+     *		The prefix of the handler's configuration.
+     *
+     * @return	The hub, or <code>null</code> if there is no such handler.
+     */
+    public static EventHub
+    getHub(Server server, String prefix)
+    {
+	Object hub = server.props.get(prefix + HUB);
+	return (hub instanceof EventHub) ? (EventHub) hub : null;
+    }
+
+    public boolean
+    respond(Request request)
+	throws IOException
+    {
+	if (!request.url.startsWith(urlPrefix)) {
+	    return false;
+	}
+	String topic = request.url.substring(urlPrefix.length());
+
+	if (post && request.method.equals("POST")) {
+	    byte[] data = request.getPostData();
+	    if (data == null) {
+		if ((request.getRequestHeader("Content-Length") != null)
+			|| (request.getRequestHeader("Transfer-Encoding")
+			    != null)) {
+		    request.sendError(413, null, "event too large");
+		    return true;
+		}
+		data = new byte[0];
+	    }
+	    String event = request.getParameters().get("event");
+	    hub.publish(topic, event, new String(data, "UTF-8"));
+	    request.sendHeaders(204, null, 0);
+	    return true;
+	}
+	if (!request.method.equals("GET")) {
+	    request.sendError(405, null, request.method);
+	    return true;
+	}
+	if (request.getSocket().getChannel() == null) {
+	    request.sendError(503, null, "events need a socket channel");
+	    return true;
+	}
+
+	request.keepAlive = false;
+	request.addHeader("Cache-Control", "no-cache");
+	request.sendHeaders(200, "text/event-stream", -1);
+	hub.subscribe(topic, request.detach(), retry);
+	return true;
+    }
+}
@@ -0,0 +1,339 @@
+package sunlabs.brazil.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import nesmid.util.HttpUtil;
+import sunlabs.brazil.util.Counter;
+
+/**
+ * Keeps small, often requested files in memory for a {@link FileHandler},
+ * so they are sent without touching the disk.  Each file is kept with
+ * the headers describing it, <code>Last-Modified</code> and
+ * <code>Content-Type</code>, already encoded, and the compressed forms of
+ * its body are kept too once a client has asked for them, if there is
+ * room for them.
+ * <p>
+ * A kept file is checked against the disk at most once every
+ * <code>check</code> milliseconds: if its modification time or length
+ * changed, it is dropped, and read again by the next request.  In
+ * between, a request for it costs no system call at all.
+ * <p>
+ * The cache is bounded by the bytes of the files it holds, compressed
+ * forms included.  When it is full, the least recently used file makes
+ * way for a new one only if the new one is asked for more often, as
+ * estimated by a {@link FrequencySketch}.
+ */
+public class FileCache
+{
+    private int size;
+    private int maxFile;
+    private long check;
+
+    /**
+     * The files, by document root and URL path, least recently used
+     * first, and the bytes they hold.
+     */
+    private LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+    private int bytes;
+
+    private FrequencySketch sketch;
+
+    /**
+     * Count of requests answered from the cache.
+     */
+    public Counter hitCount = new Counter();
+
+    /**
+     * Count of requests for files not in the cache.
+     */
+    public Counter missCount = new Counter();
+
+    /**
+     * Count of files dropped to make room for others.
+     */
+    public volatile int evictCount = 0;
+
+    /**
+     * Count of files not kept because the ones they would have displaced
+     * are asked for more often.
+     */
+    public volatile int rejectCount = 0;
+
+    /**
+     * Count of files dropped because they changed on disk.
+     */
+    public Counter staleCount = new Counter();
+
+    /**
+     * Creates a cache.
+     *
+     * @param	size
+     *		The most bytes of files kept.
+     * @param	maxFile
+     *		The largest file kept, in bytes.
+     * @param	check
+     *		The milliseconds between checks that a kept file hasn't
+     *		changed.
+     */
+    public
+    FileCache(int size, int maxFile, long check)
+    {
+	this.size = size;
+	this.maxFile = Math.min(maxFile, size);
+	this.check = check;
+	sketch = new FrequencySketch(size / 512);
+    }
+
+    /**
+     * Finds a kept file, if it hasn't changed.  The request is counted,
+     * whether or not the file is found.
+     *
+     * @param	key
+     *		The document root followed by the path from the URL.
+     *
+     * @return	The file, or <code>null</code>.
+     */
+    public Entry
+    get(String key)
+    {
+	Entry entry;
+	synchronized (this) {
+	    sketch.record(key);
+	    entry = (Entry) entries.get(key);
+	}
+	if (entry == null) {
+	    missCount.increment();
+	    return null;
+	}
+	long now = System.currentTimeMillis();
+	if (now - entry.checked >= check) {
+	    if ((entry.file.lastModified() != entry.modified)
+		    || (entry.file.length() != entry.body.length)) {
+		synchronized (this) {
+		    if (entries.get(key) == entry) {
+			entries.remove(key);
+			bytes -= entry.size;
+		    }
+		}
+		staleCount.increment();
+		missCount.increment();
+		return null;
+	    }
+	    entry.checked = now;
+	}
+	hitCount.increment();
+	return entry;
+    }
+
+    /**
+     * Reads a file, and keeps it if there is room for it.
+     *
+     * @param	key
+     *		The document root followed by the path from the URL.
+     * @param	file
+     *		The file.
+     * @param	type
+     *		Its MIME type.
+     * @param	suffix
+     *		The suffix the type was found by.
+     * @param	directory
+     *		The directory, if the URL named it rather than the file,
+     *		or <code>null</code>.
+     *
+     * @return	The file, or <code>null</code> if it is too large, not a
+     *		normal file, can't be read, or changed while it was read.
+     */
+    public Entry
+    load(String key, File file, String type, String suffix,
+	    String directory)
+    {
+	if (file.isFile() == false) {
+	    return null;
+	}
+	long length = file.length();
+	long modified = file.lastModified();
+	if ((length == 0) || (length > maxFile)) {
+	    return null;
+	}
+
+	byte[] body = new byte[(int) length];
+	FileInputStream in = null;
+	try {
+	    in = new FileInputStream(file);
+	    int n = 0;
+	    while (n < body.length) {
+		int got = in.read(body, n, body.length - n);
+		if (got < 0) {
+		    return null;
+		}
+		n += got;
+	    }
+	    if ((in.read() >= 0) || (file.lastModified() != modified)) {
+		return null;
+	    }
+	} catch (IOException e) {
+	    return null;
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {}
+	    }
+	}
+
+	Entry entry = new Entry(file, type, suffix, directory, modified, body);
+	put(key, entry);
+	return entry;
+    }
+
+    /**
+     * Keeps a file, if it is asked for more often than the ones it would
+     * displace.
+     */
+    private synchronized void
+    put(String key, Entry entry)
+    {
+	Entry old = (Entry) entries.remove(key);
+	if (old != null) {
+	    bytes -= old.size;
+	}
+	int frequency = sketch.frequency(key);
+	Iterator it = entries.entrySet().iterator();
+	while (bytes + entry.size > size) {
+	    Map.Entry eldest = (Map.Entry) it.next();
+	    if (frequency <= sketch.frequency(eldest.getKey())) {
+		rejectCount++;
+		return;
+	    }
+	    it.remove();
+	    bytes -= ((Entry) eldest.getValue()).size;
+	    evictCount++;
+	}
+	entries.put(key, entry);
+	bytes += entry.size;
+    }
+
+    /**
+     * Returns the body of a file in a content coding, compressing it the
+     * first time.  The compressed body is kept with the file if the file
+     * is still in the cache and there is room for both, made by dropping
+     * the least recently used files.
+     *
+     * @param	key
+     *		The key the file was found by.
+     * @param	entry
+     *		The file.
+     * @param	compressor
+     *		The server's compressor.
+     * @param	coding
+     *		<code>"gzip"</code> or <code>"deflate"</code>.
+     */
+    public byte[]
+    body(String key, Entry entry, Compressor compressor, String coding)
+	throws IOException
+    {
+	boolean gzip = coding.equals("gzip");
+	synchronized (this) {
+	    byte[] body = gzip ? entry.gzip : entry.deflate;
+	    if (body != null) {
+		return body;
+	    }
+	}
+	byte[] body = compressor.compress(entry.body, 0, entry.body.length,
+		coding);
+	synchronized (this) {
+	    if ((gzip ? entry.gzip : entry.deflate) != null
+		    || (entries.get(key) != entry)
+		    || (entry.size + body.length > size)) {
+		return body;
+	    }
+	    Iterator it = entries.values().iterator();
+	    while (bytes + body.length > size) {
+		Entry eldest = (Entry) it.next();
+		if (eldest == entry) {
+		    continue;
+		}
+		it.remove();
+		bytes -= eldest.size;
+		evictCount++;
+	    }
+	    if (gzip) {
+		entry.gzip = body;
+	    } else {
+		entry.deflate = body;
+	    }
+	    entry.size += body.length;
+	    bytes += body.length;
+	}
+	return body;
+    }
+
+    /**
+     * Returns the counters of the cache, one per line.
+     */
+    public synchronized String
+    report()
+    {
+	StringBuffer sb = new StringBuffer();
+	sb.append("files ").append(entries.size()).append('\n');
+	sb.append("bytes ").append(bytes).append('\n');
+	sb.append("hits ").append(hitCount.get()).append('\n');
+	sb.append("misses ").append(missCount.get()).append('\n');
+	sb.append("evictions ").append(evictCount).append('\n');
+	sb.append("rejections ").append(rejectCount).append('\n');
+	sb.append("stale ").append(staleCount.get()).append('\n');
+	return sb.toString();
+    }
+
+    /**
+     * A kept file.
+     */
+    public static class Entry
+    {
+	File file;
+	String path;
+	String type;
+	String suffix;
+	String directory;
+	long modified;
+	String lastModified;
+
+	/**
+	 * The encoded <code>Last-Modified</code> and
+	 * <code>Content-Type</code> lines.
+	 */
+	byte[] headers;
+	byte[] body;
+	byte[] gzip;
+	byte[] deflate;
+
+	/**
+	 * The bytes charged to the cache: the body and its compressed
+	 * forms.
+	 */
+	int size;
+
+	volatile long checked = System.currentTimeMillis();
+
+	Entry(File file, String type, String suffix, String directory,
+		long modified, byte[] body)
+	{
+	    this.file = file;
+	    this.path = file.getPath();
+	    this.type = type;
+	    this.suffix = suffix;
+	    this.directory = directory;
+	    this.modified = modified;
+	    this.lastModified = HttpUtil.formatTime(modified);
+	    this.body = body;
+	    this.size = body.length;
+	    String str = "Last-Modified: " + lastModified + "\r\n"
+		    + "Content-Type: " + type + "\r\n";
+	    headers = str.getBytes();
+	}
+    }
+}
@@ -65,8 +65,22 @@ import nesmid.util.HttpUtil;
  *		default, all request types are handled. (Note: this is the
  *		inverse of the previous policy, defined by the undocumented
  *		"allow" parameter).
+ * <dt>cacheSize <dd>If set, the most bytes of small files kept in
+ *		memory by a {@link FileCache}, and sent from there to the
+ *		<code>GET</code> and <code>HEAD</code> requests without a
+ *		<code>Range</code>.
+ * <dt>cacheFile <dd>The largest file kept in memory, in bytes.  Defaults
+ *		to 65536.
+ * <dt>cacheCheck <dd>The milliseconds between checks that a file kept in
+ *		memory hasn't changed on disk.  Defaults to 1000.
  * </dl>
  * <p>
+ * If the client's socket has a channel, as with the {@link NioServer}
+ * or a server with {@link Server#channels} set, large files are handed
+ * to it with <code>FileChannel.transferTo</code>, so the kernel copies
+ * them without their passing through the server.  Otherwise they are
+ * copied.
+ * <p>
  * The FileHandler sets the following entries in the request properties
  * as a side-effect:
  * <dl>
@@ -86,6 +100,9 @@ public class FileHandler implements Handler
     private static final String PREFIX = "prefix";  // our prefix
     private static final String DEFAULT = "default";    // property for default document, given directory
     private static final String GETONLY = "getOnly";  // allow only GETs
+    private static final String CACHE_SIZE = "cacheSize";
+    private static final String CACHE_FILE = "cacheFile";
+    private static final String CACHE_CHECK = "cacheCheck";
 
     public static final String MIME = "mime";	// property for mime type
     public static final String ROOT = "root";   // property for document root
@@ -94,6 +111,10 @@ public class FileHandler implements Handler
 
     String prefix;
 
+    /**
+     * The files kept in memory, or <code>null</code>.
+     */
+    public FileCache cache;
 
     /**
      * Initialize the file handler.
@@ -106,6 +127,25 @@ public class FileHandler implements Handler
     {
 	this.prefix = prefix;
 	urlPrefix = server.props.getProperty(prefix + PREFIX, urlPrefix);
+
+	int cacheSize = 0;
+	int cacheFile = 65536;
+	int cacheCheck = 1000;
+	try {
+	    String str = server.props.getProperty(prefix + CACHE_SIZE);
+	    cacheSize = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + CACHE_FILE);
+	    cacheFile = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	try {
+	    String str = server.props.getProperty(prefix + CACHE_CHECK);
+	    cacheCheck = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	if (cacheSize > 0) {
+	    cache = new FileCache(cacheSize, cacheFile, cacheCheck);
+	}
 	return true;
     }
 
@@ -142,6 +182,16 @@ public class FileHandler implements Handler
 	String name = urlToPath(url);
 	request.log(Server.LOG_DIAGNOSTIC, prefix, "Looking for file: (" +
 		root + ")(" + name + ")");
+
+	String key = root + name;
+	boolean cached = (cache != null) && cacheable(request);
+	if (cached) {
+	    FileCache.Entry entry = cache.get(key);
+	    if ((entry != null) && send(request, key, entry)) {
+		return true;
+	    }
+	}
+
 	File file = new File(root + name);
 	String path = file.getPath();
 
@@ -193,10 +243,71 @@ public class FileHandler implements Handler
 		    "unknown file suffix: " + suffix);
 	    return false;
 	}
+	if (cached) {
+	    FileCache.Entry entry = cache.load(key, file, type, suffix,
+		    props.getProperty("DirectoryName"));
+	    if ((entry != null) && send(request, key, entry)) {
+		return true;
+	    }
+	}
 	sendFile(request, file, 200, type);
 	return true;
     }
 
+    /**
+     * Returns <code>true</code> if a request may be answered from the
+     * {@link FileCache}: a whole file is wanted.
+     */
+    private static boolean
+    cacheable(Request request)
+    {
+	return (request.method.equals("GET") || request.method.equals("HEAD"))
+		&& (request.getRequestHeader("Range") == null);
+    }
+
+    /**
+     * Sends a file kept in memory, as <code>sendFile</code> would, or
+     * just "304 Not Modified".
+     *
+     * @return	<code>false</code> if the file's suffix no longer maps to
+     *		the type it was kept with, so it must be sent from disk.
+     */
+    private boolean
+    send(Request request, String key, FileCache.Entry entry)
+	throws IOException
+    {
+	Properties props = request.props;
+	String type = props.getProperty(prefix + MIME + entry.suffix,
+		props.getProperty(MIME + entry.suffix));
+	if (entry.type.equals(type) == false) {
+	    return false;
+	}
+	if (entry.directory != null) {
+	    props.put("DirectoryName", entry.directory);
+	}
+	props.put("fileName", entry.path);
+	props.put("lastModified", "" + entry.modified);
+
+	long since = HttpUtil.parseTime(
+		request.getRequestHeader("If-Modified-Since"));
+	if ((since > 0) && (entry.modified / 1000 <= since / 1000)) {
+	    request.addHeader("Last-Modified", entry.lastModified);
+	    request.sendHeaders(304, null, -1);
+	    return true;
+	}
+
+	byte[] body = entry.body;
+	Compressor compressor = request.server.compressor;
+	String coding = (compressor == null) ? null
+		: compressor.choose(request, type, 200, body.length);
+	if (coding != null) {
+	    body = cache.body(key, entry, compressor, coding);
+	    request.addHeader("Content-Encoding", coding);
+	}
+	request.sendCached(200, entry.headers, body);
+	return true;
+    }
+
     /**
      * Helper function to convert an url into a pathname. <ul>
      * <li> Collapse all %XX sequences.
@@ -248,7 +359,8 @@ public class FileHandler implements Handler
     }
 
     /**
-     * Send a file as a response.
+     * Send a file as a response, or just "304 Not Modified" if it hasn't
+     * changed since the "If-Modified-Since" date of the request.
      * @param request       The request object
      * @param fileHandle    The file to output
      * @param type          The mime type of the file
@@ -267,6 +379,16 @@ public class FileHandler implements Handler
 	    return;
 	}
 
+	long since = HttpUtil.parseTime(
+		request.getRequestHeader("If-Modified-Since"));
+	if ((since > 0) && (code == 200)
+		&& (file.lastModified() / 1000 <= since / 1000)) {
+	    request.addHeader("Last-Modified", 
+		    HttpUtil.formatTime(file.lastModified()));
+	    request.sendHeaders(304, null, -1);
+	    return;
+	}
+
 	FileInputStream in = null;
 	try {
 	    in = new FileInputStream(file);
@@ -278,6 +400,10 @@ public class FileHandler implements Handler
 	    int size = (int) file.length();
 	    request.setStatus(code);
 	    size = range(request, in, size);
+	    if (size < 0) {
+		request.sendHeaders(416, null, 0);
+		return;
+	    }
 	    request.sendResponse(in, size, type, -1);
 	} finally {
 	    if (in != null) {
@@ -288,7 +414,10 @@ public class FileHandler implements Handler
 
     /**
      * Compute simple byte ranges. (for gnutella support)
-     * @returns		The (potential partial) size.
+     * A single range is honored, with its "Content-Range"; one that
+     * starts past the end of the file can't be satisfied.
+     * @returns		The (potential partial) size, or -1 if the range
+     *			can't be satisfied.
      *			The code may be modified as a side effect.
      */
 
@@ -303,22 +432,32 @@ public class FileHandler implements Handler
 	    int start = -1;
 	    int end = -1;
 	    try {
-		start = Integer.parseInt(range.substring(6,sep));
+		start = Integer.parseInt(range.substring(6,sep).trim());
 	    } catch (NumberFormatException e) {}
 	    try {
-		end = Integer.parseInt(range.substring(sep+1));
+		end = Integer.parseInt(range.substring(sep+1).trim());
 	    } catch (NumberFormatException e) {}
-	    if (end == -1) {
-		end = size;
-	    } else if (end > size) {
-		end = size;
-	    }
 	    if (start == -1) {
-		start = size - end + 1;
-		end = size;
+		/*
+		 * The last "end" bytes.
+		 */
+		if (end == -1) {
+		    return size;
+		}
+		start = Math.max(size - end, 0);
+		end = size - 1;
+	    } else if ((end == -1) || (end >= size)) {
+		end = size - 1;
+	    }
+	    if (start >= size) {
+		request.addHeader("Content-Range", "bytes */" + size);
+		request.setStatus(416);
+		return -1;
 	    }
 	    if (end >= start) {
 		in.skip(start);
+		request.addHeader("Content-Range",
+			"bytes " + start + "-" + end + "/" + size);
 		size = end - start + 1;
 		request.setStatus(206);
 	    }
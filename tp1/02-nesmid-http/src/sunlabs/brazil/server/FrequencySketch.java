@@ -0,0 +1,82 @@
+package sunlabs.brazil.server;
+
+/**
+ * Estimates how often keys are asked for, in a fixed table of four-bit
+ * counters, so a cache can decide whether a newcomer deserves the room
+ * of an entry it already holds.
+ * <p>
+ * Each key has two counters, and the smaller one is the estimate: keys
+ * that share a counter can only make each other look more popular, and
+ * rarely share both.  Once the counters have been added to ten times
+ * over, they are all halved, so old popularity fades.
+ * <p>
+ * A sketch is not synchronized.
+ *
+ * @see	CacheHandler
+ * @see	FileCache
+ */
+class FrequencySketch
+{
+    private byte[] counts;
+    private int mask;
+    private int additions;
+
+    /**
+     * Creates a sketch.
+     *
+     * @param	size
+     *		About the number of counters; it is rounded up to a power
+     *		of two, of at least 1024.
+     */
+    FrequencySketch(int size)
+    {
+	int n = 1024;
+	while ((n < (1 << 20)) && (n < size)) {
+	    n <<= 1;
+	}
+	counts = new byte[n];
+	mask = n - 1;
+    }
+
+    /**
+     * Counts a request for a key.
+     */
+    void
+    record(Object key)
+    {
+	int h = spread(key.hashCode());
+	increment(h & mask);
+	increment((h >>> 16) & mask);
+	if (++additions >= counts.length * 10) {
+	    for (int i = 0; i < counts.length; i++) {
+		counts[i] >>= 1;
+	    }
+	    additions = 0;
+	}
+    }
+
+    /**
+     * Returns the estimated count of requests for a key, up to 15.
+     */
+    int
+    frequency(Object key)
+    {
+	int h = spread(key.hashCode());
+	return Math.min(counts[h & mask], counts[(h >>> 16) & mask]);
+    }
+
+    private void
+    increment(int i)
+    {
+	if (counts[i] < 15) {
+	    counts[i]++;
+	}
+    }
+
+    private static int
+    spread(int h)
+    {
+	h *= 0x9e3779b9;
+	return h ^ (h >>> 15);
+    }
+}
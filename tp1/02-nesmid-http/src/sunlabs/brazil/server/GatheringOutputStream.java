@@ -0,0 +1,118 @@
+package sunlabs.brazil.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The buffered stream a response is written to.  It can take the head
+ * and the start of the body of a response in one call, so they go out
+ * together.
+ * <p>
+ * If they fit in the buffer they are simply copied to it.  Otherwise
+ * they are passed to {@link #gather}, which a subclass that writes to a
+ * channel overrides to send the buffer, the head and the body in a
+ * single gathering write.  A plain socket stream has no such call, so
+ * by default they are written one after the other.
+ * <p>
+ * If the stream is given the socket's channel as its {@link #target}, a
+ * file body can be handed to it with {@link #transfer}, and the kernel
+ * copies the file to the socket without it passing through the server.
+ */
+class GatheringOutputStream
+    extends BufferedOutputStream
+{
+    /**
+     * The channel of the socket this stream writes to, or
+     * <code>null</code> if file bodies must be copied.
+     */
+    WritableByteChannel target;
+
+    public
+    GatheringOutputStream(OutputStream out)
+    {
+	super(out);
+    }
+
+    public
+    GatheringOutputStream(OutputStream out, int size)
+    {
+	super(out, size);
+    }
+
+    /**
+     * Writes two byte ranges, one after the other.
+     */
+    public synchronized void
+    write(byte[] head, int headOff, int headLen, byte[] body, int bodyOff,
+	    int bodyLen)
+	throws IOException
+    {
+	if (count + headLen + bodyLen <= buf.length) {
+	    System.arraycopy(head, headOff, buf, count, headLen);
+	    count += headLen;
+	    System.arraycopy(body, bodyOff, buf, count, bodyLen);
+	    count += bodyLen;
+	} else {
+	    gather(head, headOff, headLen, body, bodyOff, bodyLen);
+	}
+    }
+
+    /**
+     * Writes whatever is buffered and the two byte ranges, which don't
+     * all fit in the buffer.
+     */
+    protected void
+    gather(byte[] head, int headOff, int headLen, byte[] body, int bodyOff,
+	    int bodyLen)
+	throws IOException
+    {
+	write(head, headOff, headLen);
+	write(body, bodyOff, bodyLen);
+    }
+
+    /**
+     * Sends part of a file to the {@link #target}, after whatever is
+     * buffered.
+     *
+     * @param	file
+     *		The file.
+     * @param	position
+     *		Where the part starts.
+     * @param	count
+     *		Its length.
+     *
+     * @return	The number of bytes sent, fewer than <code>count</code>
+     *		only if the file ends first.
+     */
+    synchronized long
+    transfer(FileChannel file, long position, long count)
+	throws IOException
+    {
+	flush();
+	long sent = 0;
+	while (sent < count) {
+	    long n = file.transferTo(position + sent, count - sent, target);
+	    if (n > 0) {
+		sent += n;
+	    } else if (position + sent >= file.size()) {
+		break;
+	    } else {
+		awaitWritable();
+	    }
+	}
+	return sent;
+    }
+
+    /**
+     * Waits until the target takes more bytes.  A blocking channel
+     * always does, so there is nothing to wait for.
+     */
+    protected void
+    awaitWritable()
+	throws IOException
+    {
+    }
+}
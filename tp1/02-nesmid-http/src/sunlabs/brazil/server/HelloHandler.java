@@ -4,14 +4,19 @@ import java.io.IOException;
 
 public class HelloHandler implements Handler {
 
+	private String urlPrefix = "/";
+
 	public boolean init(Server server, String prefix) {
-		// TODO Auto-generated method stub
+		urlPrefix = server.props.getProperty(prefix + "prefix", urlPrefix);
 		return true;
 	}
 
 	public boolean respond(Request request) throws IOException {
+		if (!request.url.startsWith(urlPrefix)) {
+			return false;
+		}
 		request.sendResponse("Hello World") ;
-		return false;
+		return true;
 	}
 
 }
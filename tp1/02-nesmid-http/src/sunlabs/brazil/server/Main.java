@@ -345,10 +345,68 @@ public class Main
      * <dt> listenQueue
      * <dd> max size of the OS'slisten queue for server sockets
      * <dt> maxPost
-     * <dd> max size of a content-length for a Post or Put in bytes.
-     *	    (defaults to 2Meg)
+     * <dd> max size of the content of a Post or Put, in bytes, that is
+     *	    read into memory.  Larger content must be streamed by the
+     *	    handler.  (defaults to 2Meg)
      * <dt> maxThreads
-     * <dd> max number of threads allowed (defaults to 250)
+     * <dd> max number of threads allowed (defaults to 250), or with
+     *	    virtualThreads, max number of connections served at once
+     * <dt> virtualThreads
+     * <dd> If present, serve each connection on a virtual thread
+     * <dt> parkIdle
+     * <dd> If present, kept-alive connections waiting for their next
+     *	    request release their thread until the request arrives
+     * <dt> poolMax
+     * <dd> If set, connections are served by a bounded pool of at most
+     *	    this many worker threads, instead of a thread per connection.
+     * <dt> poolCore
+     * <dd> number of pool workers kept when idle (defaults to poolMax)
+     * <dt> poolQueue
+     * <dd> max number of connections waiting for a pool worker; any
+     *	    more are refused with a 503 (defaults to 50)
+     * <dt> retryAfter
+     * <dd> seconds a refused client is asked to wait (defaults to 5)
+     * <dt> acceptors
+     * <dd> number of threads accepting connections (defaults to 1)
+     * <dt> adaptiveLimit
+     * <dd> If present, the number of requests handled at once adapts to
+     *	    their latency; requests over the limit get a 503
+     * <dt> limitMin, limitMax
+     * <dd> bounds of the adaptive limit (default 4 and maxThreads)
+     * <dt> limitLatency
+     * <dd> latency target in ms for the adaptive limit (defaults to
+     *	    twice the latency of the fastest requests)
+     * <dt> rateLimit
+     * <dd> requests per second allowed from each client address; faster
+     *	    clients get a 429 (defaults to no limit)
+     * <dt> rateBurst
+     * <dd> requests a client may make at once (defaults to rateLimit)
+     * <dt> rateClients
+     * <dd> max number of client addresses tracked (defaults to 10000)
+     * <dt> ratePrefixes
+     * <dd> list of <i>url-prefix</i>=<i>rate</i> pairs giving each client
+     *	    its own requests per second for those URLs
+     * <dt> compress
+     * <dd> If present, text responses are compressed for the clients
+     *	    that accept gzip or deflate
+     * <dt> compressMin
+     * <dd> smallest response body, in bytes, that is compressed
+     *	    (defaults to 256)
+     * <dt> compressLevel
+     * <dd> compression level, 1 (fastest) to 9 (smallest) (defaults to 6)
+     * <dt> compressTypes
+     * <dd> list of the type prefixes to compress (defaults to the
+     *	    text, XML, JSON, JavaScript and SVG types)
+     * <dt> drainTimeout
+     * <dd> seconds requests in progress may take to finish when the
+     *	    server is stopped, or the VM exits (defaults to 0)
+     * <dt> reusePort
+     * <dd> If present, with acceptors, each acceptor gets its own
+     *	    listening socket bound with SO_REUSEPORT
+     * <dt> channels
+     * <dd> If present, accepted sockets have channels, so large files are
+     *	    sent with transferTo; needed by the EventSourceHandler.  Only
+     *	    a plain listening socket can be replaced
      * <dt> port
      * <dd> Server port (default 8080)
      * <dt> defaultPrefix
@@ -453,6 +511,31 @@ public class Main
 		    server.maxThreads = Integer.decode(str).intValue();
 		} catch (Exception e) {}
 
+		try {
+		    String str = config.getProperty("poolMax");
+		    server.poolMax = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("poolCore");
+		    server.poolCore = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("poolQueue");
+		    server.poolQueue = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("retryAfter");
+		    server.retryAfter = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("acceptors");
+		    server.acceptors = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
 		try {
 		    String str = config.getProperty("maxPost");
 		    server.maxPost = Integer.decode(str).intValue();
@@ -463,6 +546,70 @@ public class Main
 		    server.timeout = Integer.decode(str).intValue() * 1000;
 		} catch (Exception e) {}
 
+		try {
+		    String str = config.getProperty("limitMin");
+		    server.limitMin = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("limitMax");
+		    server.limitMax = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("limitLatency");
+		    server.limitLatency = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("rateLimit");
+		    server.rateLimit = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("rateBurst");
+		    server.rateBurst = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("rateClients");
+		    server.rateClients = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("compressMin");
+		    server.compressMin = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("compressLevel");
+		    server.compressLevel = Integer.decode(str).intValue();
+		} catch (Exception e) {}
+
+		try {
+		    String str = config.getProperty("drainTimeout");
+		    server.drainTimeout = Integer.decode(str).intValue() * 1000;
+		} catch (Exception e) {}
+
+		if (config.containsKey("virtualThreads")) {
+		    server.virtualThreads = true;
+		}
+		if (config.containsKey("parkIdle")) {
+		    server.parkIdle = true;
+		}
+		if (config.containsKey("reusePort")) {
+		    server.reusePort = true;
+		}
+		if (config.containsKey("channels")) {
+		    server.channels = true;
+		}
+		if (config.containsKey("adaptiveLimit")) {
+		    server.adaptiveLimit = true;
+		}
+		if (config.containsKey("compress")) {
+		    server.compress = true;
+		}
+
 		/*
 		 * Turn off keep alives entirely
 		 */
@@ -491,6 +638,43 @@ public class Main
 		    }
 		}
 
+		{
+		    Vector types = new Vector();
+		    String str = config.getProperty("compressTypes", "");
+		    StringTokenizer st = new StringTokenizer(str);
+		    while (st.hasMoreTokens()) {
+			types.addElement(st.nextToken());
+		    }
+		    if (types.size() > 0) {
+			server.compressTypes = new String[types.size()];
+			types.copyInto(server.compressTypes);
+		    }
+		}
+
+		{
+		    Vector prefixes = new Vector();
+		    Vector rates = new Vector();
+		    String str = config.getProperty("ratePrefixes", "");
+		    StringTokenizer st = new StringTokenizer(str);
+		    while (st.hasMoreTokens()) {
+			String pair = st.nextToken();
+			int eq = pair.lastIndexOf('=');
+			try {
+			    rates.addElement(Integer.decode(pair.substring(eq + 1)));
+			    prefixes.addElement(pair.substring(0, eq));
+			} catch (Exception e) {}
+		    }
+		    if (prefixes.size() > 0) {
+			server.ratePrefixes = new String[prefixes.size()];
+			prefixes.copyInto(server.ratePrefixes);
+			server.prefixRates = new int[rates.size()];
+			for (int i = 0; i < rates.size(); i++) {
+			    server.prefixRates[i] =
+				    ((Integer) rates.elementAt(i)).intValue();
+			}
+		    }
+		}
+
 		{
 		    String str = config.getProperty("init", "");
 		    StringTokenizer st = new StringTokenizer(str);
@@ -512,6 +696,22 @@ public class Main
 		    config.put("_server", server);
 		} else {
 		    server.start();
+
+		    /*
+		     * Let the requests in progress finish when the VM is
+		     * asked to exit, as during a rolling restart.
+		     */
+
+		    if (server.drainTimeout > 0) {
+			final Server stopping = server;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+			    public void
+			    run()
+			    {
+				stopping.close();
+			    }
+			});
+		    }
 		}
 		//Logger.out.println("") ;
 	return true;
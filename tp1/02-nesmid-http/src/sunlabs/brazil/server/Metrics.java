@@ -0,0 +1,167 @@
+package sunlabs.brazil.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import sunlabs.brazil.util.Counter;
+import sunlabs.brazil.util.LatencyHistogram;
+
+/**
+ * The counters and latency histograms kept by a {@link Server}.
+ * <p>
+ * The counters are striped, so threads recording at the same time don't
+ * contend and no count is lost.  Recording a request allocates nothing,
+ * except the first time a status code or handler is seen, so metrics
+ * are always on.
+ * <p>
+ * Latencies are measured from the arrival of the request line until the
+ * response is flushed, and kept both for the whole server and for each
+ * handler, by the name it was configured with in its
+ * {@link ChainHandler}.
+ *
+ * @see	MetricsHandler
+ */
+public class Metrics
+{
+    /**
+     * Connections accepted.
+     */
+    public Counter accepts = new Counter();
+
+    /**
+     * Connections refused at once, because the server was too busy or
+     * the client was over its rate limit.
+     */
+    public Counter refused = new Counter();
+
+    /**
+     * Requests answered.
+     */
+    public Counter requests = new Counter();
+
+    /**
+     * Error responses sent with {@link Request#sendError}.
+     */
+    public Counter errors = new Counter();
+
+    /**
+     * Bytes of requests read, including the request line and headers.
+     */
+    public Counter bytesIn = new Counter();
+
+    /**
+     * Bytes of responses written, including the status line and headers.
+     */
+    public Counter bytesOut = new Counter();
+
+    /**
+     * The latency of all requests.
+     */
+    public LatencyHistogram latency = new LatencyHistogram();
+
+    private AtomicReferenceArray statusCounts = new AtomicReferenceArray(600);
+    private ConcurrentHashMap handlers = new ConcurrentHashMap();
+
+    /**
+     * Records an answered request.
+     *
+     * @param	handler
+     *		The name of the handler that answered, or <code>null</code>.
+     * @param	status
+     *		The status code sent.
+     * @param	micros
+     *		The latency, in microseconds.
+     * @param	in
+     *		The number of bytes read.
+     * @param	out
+     *		The number of bytes written.
+     */
+    public void
+    record(String handler, int status, long micros, long in, long out)
+    {
+	requests.increment();
+	bytesIn.add(in);
+	bytesOut.add(out);
+	statusCounter(status).increment();
+	latency.record(micros);
+	if (handler != null) {
+	    getHistogram(handler).record(micros);
+	}
+    }
+
+    /**
+     * Returns the number of responses sent with a status code.
+     */
+    public long
+    getStatusCount(int status)
+    {
+	if ((status < 0) || (status >= statusCounts.length())) {
+	    return 0;
+	}
+	Counter counter = (Counter) statusCounts.get(status);
+	return (counter == null) ? 0 : counter.get();
+    }
+
+    /**
+     * Returns the latency histogram for a handler, creating it if needed.
+     */
+    public LatencyHistogram
+    getHistogram(String handler)
+    {
+	LatencyHistogram histogram = (LatencyHistogram) handlers.get(handler);
+	if (histogram == null) {
+	    LatencyHistogram fresh = new LatencyHistogram();
+	    histogram = (LatencyHistogram) handlers.putIfAbsent(handler, fresh);
+	    if (histogram == null) {
+		histogram = fresh;
+	    }
+	}
+	return histogram;
+    }
+
+    private Counter
+    statusCounter(int status)
+    {
+	if ((status < 0) || (status >= statusCounts.length())) {
+	    status = 0;
+	}
+	Counter counter = (Counter) statusCounts.get(status);
+	if (counter == null) {
+	    statusCounts.compareAndSet(status, null, new Counter());
+	    counter = (Counter) statusCounts.get(status);
+	}
+	return counter;
+    }
+
+    /**
+     * Returns the metrics as text, one <i>name value</i> pair a line.
+     */
+    public String
+    report()
+    {
+	StringBuffer sb = new StringBuffer();
+	sb.append("accepts ").append(accepts).append('\n');
+	sb.append("refused ").append(refused).append('\n');
+	sb.append("requests ").append(requests).append('\n');
+	sb.append("errors ").append(errors).append('\n');
+	sb.append("bytesIn ").append(bytesIn).append('\n');
+	sb.append("bytesOut ").append(bytesOut).append('\n');
+	for (int i = 0; i < statusCounts.length(); i++) {
+	    Counter counter = (Counter) statusCounts.get(i);
+	    if (counter != null) {
+		sb.append("status.").append(i).append(' ').append(counter)
+			.append('\n');
+	    }
+	}
+	sb.append("latency ").append(latency).append('\n');
+	Iterator it = new TreeMap(handlers).entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry entry = (Map.Entry) it.next();
+	    sb.append("latency.").append(entry.getKey()).append(' ')
+		    .append(entry.getValue()).append('\n');
+	}
+	return sb.toString();
+    }
+}
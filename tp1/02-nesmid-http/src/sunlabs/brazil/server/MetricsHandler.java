@@ -0,0 +1,39 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+
+/**
+ * Handler that returns the server's {@link Metrics} as plain text.
+ * The following configuration parameters are used:
+ * <dl class=props>
+ * <dt>prefix	<dd>The URL the metrics are served from.  Defaults to
+ *		<code>/metrics</code>.
+ * </dl>
+ */
+public class MetricsHandler implements Handler
+{
+    private static final String PREFIX = "prefix";
+
+    public String urlPrefix = "/metrics";
+
+    Server server;
+
+    public boolean
+    init(Server server, String prefix)
+    {
+	this.server = server;
+	urlPrefix = server.props.getProperty(prefix + PREFIX, urlPrefix);
+	return true;
+    }
+
+    public boolean
+    respond(Request request)
+	throws IOException
+    {
+	if (!request.url.startsWith(urlPrefix)) {
+	    return false;
+	}
+	request.sendResponse(server.metrics.report(), "text/plain");
+	return true;
+    }
+}
@@ -0,0 +1,630 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import sunlabs.brazil.util.http.HttpBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An HTTP server that multiplexes its client sockets over a small number
+ * of event loop threads, instead of dedicating a thread to each socket.
+ * It is started by setting the <code>serverClass</code> property to
+ * <code>sunlabs.brazil.server.NioServer</code>.
+ * <p>
+ * Each event loop owns a <code>Selector</code> and does the non-blocking
+ * reads for its sockets.  Once a complete request (the request line,
+ * the headers and any body, chunked or not) has been read,
+ * the socket is handed to the server's worker pool, where the request is
+ * parsed and passed to the {@link Handler} just as with the
+ * {@link Server}.  While a socket is idle between requests it costs no
+ * thread at all.
+ * <p>
+ * The following configuration parameters are used, in addition to the
+ * ones used by {@link Server}:
+ * <dl class=props>
+ * <dt>loops	<dd>The number of event loop threads.  Defaults to the
+ *		number of processors.
+ * <dt>poolMax	<dd>The number of worker threads running handlers.
+ *		Defaults to <code>maxThreads</code>.
+ * </dl>
+ * Limitations:
+ * <ul>
+ * <li>Request bodies are read into memory before the handler is called,
+ *     so they are still bounded by <code>maxPost</code>, even when the
+ *     handler streams them with {@link Request#getBody}.  A request with
+ *     "Expect: 100-continue" is told to go ahead by the event loop if
+ *     its length is within <code>maxPost</code>, and refused with a 413
+ *     otherwise, before the handler sees it.
+ * <li>Responses are written by the worker thread, which waits for the
+ *     socket to drain when the client reads slowly.
+ * </ul>
+ */
+public class NioServer
+    extends Server
+{
+    /**
+     * The number of event loop threads.
+     */
+    public int loops = Runtime.getRuntime().availableProcessors();
+
+    Loop[] loopList;
+
+    /**
+     * Starts the event loops, after the usual server initialization.
+     * The listening socket is first replaced by a channel-based one if
+     * needed, so any <code>reusePort</code> listeners have channels too.
+     */
+    public boolean
+    init()
+    {
+	try {
+	    String str = props.getProperty("loops");
+	    loops = Integer.decode(str).intValue();
+	} catch (Exception e) {}
+	if (poolMax <= 0) {
+	    poolMax = maxThreads;
+	}
+	parkIdle = false;	// idle sockets never hold a thread here
+	try {
+	    useChannel();
+	} catch (IOException e) {
+	    log(LOG_ERROR, "server", "Can't open listening channel: " + e);
+	    return false;
+	}
+	if (super.init() == false) {
+	    return false;
+	}
+	try {
+	    loopList = new Loop[Math.max(loops, 1)];
+	    for (int i = 0; i < loopList.length; i++) {
+		loopList[i] = new Loop(prefix + "loop-" + i);
+		loopList[i].start();
+	    }
+	} catch (IOException e) {
+	    log(LOG_ERROR, "server", "Can't start event loops: " + e);
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Accepts socket connections on each acceptor.
+     */
+    public void
+    run()
+    {
+	try {
+	    if (init() == false) {
+		return;
+	    }
+
+	    startAcceptors();
+	    accept(listen);
+	} catch (IOException e) {
+	    /*
+	     * Quit anyhow.
+	     */
+	} finally {
+	    closeListeners();
+	    drain();
+	    if (executor instanceof ExecutorService) {
+		((ExecutorService) executor).shutdownNow();
+	    }
+	    if (loopList != null) {
+		for (int i = 0; i < loopList.length; i++) {
+		    if (loopList[i] != null) {
+			loopList[i].close();
+		    }
+		}
+	    }
+	    group = null;
+	}
+    }
+
+    /**
+     * Accepts socket connections from one listening socket and hands
+     * each one to an event loop, in turn.
+     */
+    protected void
+    accept(ServerSocket listen)
+	throws IOException
+    {
+	ServerSocketChannel channel = listen.getChannel();
+	int next = 0;
+	while (true) {
+	    SocketChannel client = channel.accept();
+	    Socket sock = client.socket();
+
+	    log(LOG_INFORMATIONAL, sock.getInetAddress().getHostAddress(),
+		    "new connection");
+
+	    if (allowed(sock) == false) {
+		log(LOG_DIAGNOSTIC, sock.getInetAddress(),
+			"rejected request");
+		sock.close();
+		continue;
+	    }
+	    if (throttled(sock)) {
+		continue;
+	    }
+	    client.configureBlocking(false);
+	    loopList[next].add(new NioConnection(client));
+	    next = (next + 1) % loopList.length;
+	    acceptCount++;
+	    metrics.accepts.increment();
+	}
+    }
+
+    /**
+     * Closes the sockets held by the event loops between requests, as
+     * well as the idle connections known to the {@link Server}.
+     */
+    protected void
+    closeIdle()
+    {
+	super.closeIdle();
+	if (loopList == null) {
+	    return;
+	}
+	for (int i = 0; i < loopList.length; i++) {
+	    loopList[i].closeIdle();
+	}
+    }
+
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    static final byte[] TOO_LARGE = ("HTTP/1.0 413 Request Entity Too Large\r\n"
+	    + "Connection: close\r\n"
+	    + "Content-Length: 0\r\n\r\n").getBytes();
+
+    /**
+     * An event loop thread.  It reads from its sockets, and runs the
+     * tasks given to it by other threads, such as re-arming a socket
+     * after a worker is done with it.
+     */
+    class Loop
+	extends Thread
+    {
+	Selector selector;
+	ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+
+	/**
+	 * Where the bytes sent to refused sockets are read and dropped.
+	 */
+	ByteBuffer discard = ByteBuffer.allocate(16384);
+	volatile boolean closed = false;
+
+	Loop(String name)
+	    throws IOException
+	{
+	    super(group, name);
+	    selector = Selector.open();
+	}
+
+	/**
+	 * Runs a task on this loop's thread.
+	 */
+	void
+	execute(Runnable task)
+	{
+	    tasks.add(task);
+	    selector.wakeup();
+	}
+
+	/**
+	 * Registers a newly accepted socket with this loop.
+	 */
+	void
+	add(final NioConnection conn)
+	{
+	    execute(new Runnable() {
+		public void
+		run()
+		{
+		    try {
+			conn.loop = Loop.this;
+			conn.key = conn.channel.register(selector,
+				SelectionKey.OP_READ, conn);
+		    } catch (IOException e) {
+			conn.close();
+		    }
+		}
+	    });
+	}
+
+	void
+	close()
+	{
+	    closed = true;
+	    selector.wakeup();
+	}
+
+	public void
+	run()
+	{
+	    long lastSweep = System.currentTimeMillis();
+	    try {
+		while (!closed) {
+		    selector.select(1000);
+
+		    Runnable task;
+		    while ((task = (Runnable) tasks.poll()) != null) {
+			task.run();
+		    }
+
+		    Iterator it = selector.selectedKeys().iterator();
+		    while (it.hasNext()) {
+			SelectionKey key = (SelectionKey) it.next();
+			it.remove();
+			if (key.isValid() && key.isReadable()) {
+			    ((NioConnection) key.attachment()).readable();
+			}
+		    }
+
+		    long now = System.currentTimeMillis();
+		    if (now - lastSweep >= 1000) {
+			sweep(now);
+			lastSweep = now;
+		    }
+		}
+	    } catch (IOException e) {
+		log(LOG_WARNING, getName(), "event loop failed: " + e);
+	    } finally {
+		Object[] keys = selector.keys().toArray();
+		for (int i = 0; i < keys.length; i++) {
+		    ((NioConnection) ((SelectionKey) keys[i]).attachment())
+			    .close();
+		}
+		try {
+		    selector.close();
+		} catch (IOException e) {}
+	    }
+	}
+
+	/**
+	 * Closes the sockets not being served by a worker.
+	 */
+	void
+	closeIdle()
+	{
+	    execute(new Runnable() {
+		public void
+		run()
+		{
+		    Object[] keys = selector.keys().toArray();
+		    for (int i = 0; i < keys.length; i++) {
+			NioConnection conn = (NioConnection)
+				((SelectionKey) keys[i]).attachment();
+			if (!conn.busy) {
+			    conn.close();
+			}
+		    }
+		}
+	    });
+	}
+
+	/**
+	 * Closes the sockets that have been idle, or sending an
+	 * incomplete request, for longer than the server timeout.
+	 */
+	void
+	sweep(long now)
+	{
+	    Object[] keys = selector.keys().toArray();
+	    for (int i = 0; i < keys.length; i++) {
+		NioConnection conn = (NioConnection)
+			((SelectionKey) keys[i]).attachment();
+		if (conn.busy) {
+		    continue;
+		}
+		if (now - conn.lastActive > timeout) {
+		    log(LOG_INFORMATIONAL, conn.sock, "idle timeout");
+		    conn.close();
+		} else if ((conn.lingerUntil != 0) && (now > conn.lingerUntil)) {
+		    conn.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * The state of one client socket.  The bytes read by the event loop
+     * are kept in <code>data</code>, which the request then reads and
+     * parses in place.  The event loop only touches the buffer while no
+     * worker is busy with the socket.
+     */
+    class NioConnection
+	extends Connection
+    {
+	SocketChannel channel;
+	Loop loop;
+	SelectionKey key;
+
+	HttpBuffer data = new HttpBuffer(null, Math.min(bufsize, 2048));
+
+	boolean busy = false;
+
+	/**
+	 * Set once the buffered request has been sent a 100 Continue.
+	 */
+	boolean continued = false;
+	long lastActive = System.currentTimeMillis();
+
+	/**
+	 * Once the socket has been refused, when to stop reading what the
+	 * client still sends, and close it.
+	 */
+	long lingerUntil = 0;
+
+	/**
+	 * Where a worker waits for the socket to drain, opened the first
+	 * time it fills up and kept until the socket is closed.
+	 */
+	Selector writeSelector;
+
+	NioConnection(SocketChannel channel)
+	{
+	    super(NioServer.this, channel.socket(), null);
+	    this.channel = channel;
+	    request = new Request(server, sock, data, new ChannelOutput());
+	    request.bodyBuffered = true;
+	    lazyFlush = true;
+	}
+
+	/**
+	 * Called by the event loop when the socket has bytes to read.
+	 */
+	void
+	readable()
+	{
+	    try {
+		if (lingerUntil != 0) {
+		    loop.discard.clear();
+		    if ((channel.read(loop.discard) < 0)
+			    || (System.currentTimeMillis() > lingerUntil)) {
+			close();
+		    }
+		    return;
+		}
+		if (data.readFrom(channel) < 0) {
+		    close();
+		    return;
+		}
+		lastActive = System.currentTimeMillis();
+		dispatch();
+	    } catch (IOException e) {
+		close();
+	    }
+	}
+
+	/**
+	 * Hands the socket to a worker if a complete request has been
+	 * read, otherwise waits for more bytes.
+	 */
+	void
+	dispatch()
+	{
+	    if (!key.isValid()) {
+		return;
+	    }
+	    int length = data.requestLength(maxPost);
+	    if ((length > data.buffered())
+		    || ((length < 0) && (data.buffered() >= bufsize + maxPost))) {
+		log(LOG_INFORMATIONAL, sock, "request too large");
+		metrics.refused.increment();
+		refuse(TOO_LARGE);
+		return;
+	    }
+	    if (length < 0) {
+		if (data.expectsContinue() && !continued) {
+		    continued = true;
+		    try {
+			channel.write(ByteBuffer.wrap(CONTINUE));
+		    } catch (IOException e) {
+			close();
+			return;
+		    }
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		return;
+	    }
+	    continued = false;
+	    busy = true;
+	    key.interestOps(0);
+	    try {
+		executor.execute(this);
+	    } catch (RejectedExecutionException e) {
+		rejectCount.increment();
+		metrics.refused.increment();
+		log(LOG_WARNING, sock, "Server busy, refusing: "
+			+ rejectCount.get() + " refused, "
+			+ getActiveWorkers() + " active, "
+			+ getQueueDepth() + " queued");
+		refuse(busyResponse());
+	    }
+	}
+
+	/**
+	 * Writes a canned response, as far as the socket buffer allows, and
+	 * tells the client nothing more is coming.  What the client is still
+	 * sending is read and dropped for <code>LINGER</code> milliseconds
+	 * before the socket is closed, as closing it with unread input would
+	 * reset it, and the client may lose the response.
+	 */
+	void
+	refuse(byte[] response)
+	{
+	    try {
+		channel.write(ByteBuffer.wrap(response));
+		sock.shutdownOutput();
+	    } catch (IOException e) {
+		close();
+		return;
+	    }
+	    busy = false;
+	    lingerUntil = System.currentTimeMillis() + LINGER;
+	    key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Runs on a worker: parses the buffered request, calls the handler
+	 * and gives the socket back to its event loop.
+	 */
+	public void
+	run()
+	{
+	    boolean keep = false;
+	    enter(this);
+	    try {
+		keep = request.shouldKeepAlive() && serve()
+			&& request.shouldKeepAlive();
+
+		/*
+		 * If another complete request is already buffered, its
+		 * response is written along with this one.
+		 */
+
+		if (keep && (data.requestLength(maxPost) < 0)) {
+		    request.out.flush();
+		}
+	    } catch (IOException e) {
+		log(LOG_INFORMATIONAL, e.getMessage(), "I/O error on socket");
+	    } catch (Exception e) {
+		e.printStackTrace();
+		request.sendError(500, e.toString(), "unexpected error");
+	    } finally {
+		leave(this);
+	    }
+	    if (request.detached) {
+		key.cancel();
+		closeWriteSelector();
+	    } else if (keep) {
+		loop.execute(new Runnable() {
+		    public void
+		    run()
+		    {
+			busy = false;
+			lastActive = System.currentTimeMillis();
+			dispatch();
+		    }
+		});
+	    } else {
+		close();
+	    }
+	}
+
+	void
+	close()
+	{
+	    super.close();
+	    closeWriteSelector();
+	}
+
+	private void
+	closeWriteSelector()
+	{
+	    if (writeSelector != null) {
+		try {
+		    writeSelector.close();
+		} catch (IOException e) {}
+		writeSelector = null;
+	    }
+	}
+
+	/**
+	 * The buffered stream over {@link Output}, which sends a response
+	 * head and body that don't fit in its buffer with one gathering
+	 * write.
+	 */
+	class ChannelOutput
+	    extends GatheringOutputStream
+	{
+	    ChannelOutput()
+	    {
+		super(new Output(), bufsize);
+		target = channel;
+	    }
+
+	    protected void
+	    awaitWritable()
+		throws IOException
+	    {
+		((Output) out).awaitWritable();
+	    }
+
+	    protected void
+	    gather(byte[] head, int headOff, int headLen, byte[] body,
+		    int bodyOff, int bodyLen)
+		throws IOException
+	    {
+		ByteBuffer[] bufs = {
+		    ByteBuffer.wrap(buf, 0, count),
+		    ByteBuffer.wrap(head, headOff, headLen),
+		    ByteBuffer.wrap(body, bodyOff, bodyLen)
+		};
+		count = 0;
+		long left = bufs[0].remaining() + headLen + bodyLen;
+		while (left > 0) {
+		    long n = channel.write(bufs);
+		    if (n == 0) {
+			((Output) out).awaitWritable();
+		    }
+		    left -= n;
+		}
+	    }
+	}
+
+	/**
+	 * Writes to the non-blocking channel, waiting for the socket to
+	 * drain when it is full.
+	 */
+	class Output
+	    extends OutputStream
+	{
+	    public void
+	    write(int b)
+		throws IOException
+	    {
+		write(new byte[] {(byte) b}, 0, 1);
+	    }
+
+	    public void
+	    write(byte[] b, int off, int len)
+		throws IOException
+	    {
+		ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+		while (bb.hasRemaining()) {
+		    if (channel.write(bb) == 0) {
+			awaitWritable();
+		    }
+		}
+	    }
+
+	    void
+	    awaitWritable()
+		throws IOException
+	    {
+		if (writeSelector == null) {
+		    writeSelector = Selector.open();
+		    channel.register(writeSelector, SelectionKey.OP_WRITE);
+		}
+		int n = writeSelector.select(timeout);
+		writeSelector.selectedKeys().clear();
+		if (n == 0) {
+		    throw new SocketTimeoutException("write timed out");
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,178 @@
+package sunlabs.brazil.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Internal "helper" class that holds kept-alive connections while they
+ * wait for their next request, so they don't each tie up a thread.
+ * <p>
+ * A {@link Connection} that has finished a response, and has no further
+ * request already buffered, parks itself here and its thread returns.
+ * A single thread watches all the parked sockets with a
+ * <code>Selector</code>.  As soon as bytes arrive on one, the socket is
+ * put back in blocking mode and its connection is run again on the
+ * server's executor, or on a new thread if there is none.  Connections
+ * left idle longer than the server timeout are closed.
+ * <p>
+ * Only sockets that have a channel can be parked; the {@link Server}
+ * arranges for that when <code>parkIdle</code> is set.
+ */
+class Parker
+    extends Thread
+{
+    Server server;
+    Selector selector;
+    ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();
+    volatile boolean closed = false;
+
+    Parker(Server server)
+	throws IOException
+    {
+	super(server.group, server.prefix + "parker");
+	this.server = server;
+	selector = Selector.open();
+    }
+
+    /**
+     * Parks a connection.  Called by the connection's own thread, which
+     * must not touch the connection afterwards.
+     */
+    void
+    park(Connection conn)
+    {
+	conn.idleSince = System.currentTimeMillis();
+	pending.add(conn);
+	selector.wakeup();
+    }
+
+    void
+    close()
+    {
+	closed = true;
+	selector.wakeup();
+    }
+
+    public void
+    run()
+    {
+	long lastSweep = System.currentTimeMillis();
+	try {
+	    while (!closed) {
+		selector.select(1000);
+
+		Connection conn;
+		while ((conn = (Connection) pending.poll()) != null) {
+		    try {
+			SelectableChannel channel = conn.sock.getChannel();
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, conn);
+		    } catch (IOException e) {
+			conn.close();
+		    }
+		}
+
+		Vector ready = new Vector();
+		Iterator it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+		    SelectionKey key = (SelectionKey) it.next();
+		    it.remove();
+		    key.cancel();
+		    ready.addElement(key.attachment());
+		}
+		if (ready.size() > 0) {
+		    /*
+		     * A channel can't go back to blocking mode until its
+		     * cancelled key has been flushed by a select.
+		     */
+
+		    selector.selectNow();
+		    for (int i = 0; i < ready.size(); i++) {
+			wake((Connection) ready.elementAt(i));
+		    }
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - lastSweep >= 1000) {
+		    sweep(now);
+		    lastSweep = now;
+		}
+	    }
+	} catch (IOException e) {
+	    server.log(Server.LOG_WARNING, getName(), "failed: " + e);
+	} finally {
+	    Object[] keys = selector.keys().toArray();
+	    for (int i = 0; i < keys.length; i++) {
+		((Connection) ((SelectionKey) keys[i]).attachment()).close();
+	    }
+	    Connection conn;
+	    while ((conn = (Connection) pending.poll()) != null) {
+		conn.close();
+	    }
+	    try {
+		selector.close();
+	    } catch (IOException e) {}
+	}
+    }
+
+    /**
+     * Hands a connection whose next request is arriving back to a thread.
+     * Without a pool, a new thread is started only while the server has
+     * fewer than <code>maxThreads</code>; otherwise, as when the pool is
+     * full, the connection is refused.
+     */
+    void
+    wake(Connection conn)
+    {
+	try {
+	    conn.sock.getChannel().configureBlocking(true);
+	    if (server.executor != null) {
+		server.executor.execute(conn);
+	    } else if (server.group.activeCount() < server.maxThreads) {
+		new Thread(server.group, conn,
+			conn.sock.getInetAddress().getHostAddress() + "-"
+			+ server.acceptCount).start();
+	    } else {
+		refuse(conn);
+	    }
+	} catch (RejectedExecutionException e) {
+	    refuse(conn);
+	} catch (IOException e) {
+	    conn.close();
+	}
+    }
+
+    private void
+    refuse(Connection conn)
+    {
+	server.rejectCount.increment();
+	server.log(Server.LOG_WARNING, conn.sock,
+		"Server busy, refusing kept-alive connection");
+	server.reject(conn.sock);
+    }
+
+    /**
+     * Closes the parked connections that have been idle for longer than
+     * the server timeout.
+     */
+    void
+    sweep(long now)
+    {
+	Object[] keys = selector.keys().toArray();
+	for (int i = 0; i < keys.length; i++) {
+	    SelectionKey key = (SelectionKey) keys[i];
+	    Connection conn = (Connection) key.attachment();
+	    if (key.isValid() && (now - conn.idleSince > server.timeout)) {
+		server.log(Server.LOG_INFORMATIONAL, conn.sock, "idle timeout");
+		key.cancel();
+		conn.close();
+	    }
+	}
+    }
+}
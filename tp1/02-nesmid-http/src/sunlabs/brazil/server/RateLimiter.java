@@ -0,0 +1,171 @@
+package sunlabs.brazil.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A table of token buckets, one per key, such as a client address.
+ * Each bucket refills at <code>rate</code> tokens a second and holds at
+ * most <code>burst</code> tokens.
+ * <p>
+ * A bucket is kept as a single <code>AtomicLong</code>: the time at which
+ * it will be full again (the "theoretical arrival time" of the generic
+ * cell rate algorithm).  Taking a token moves that time forward by one
+ * token's worth with a compare-and-set, so checking a client never takes
+ * a lock.
+ * <p>
+ * A full bucket is the same as no bucket, so entries expire on their
+ * own.  When the table holds <code>maxKeys</code> entries the expired
+ * ones are swept out, at most once a second.  Until room is made, new
+ * keys all share one more bucket, so a client going through many
+ * addresses is still limited, and costs no more than any other.
+ *
+ * @see	Server#rateLimit
+ */
+public class RateLimiter
+{
+    private long interval;
+    private long tolerance;
+    private int maxKeys;
+    private ConcurrentHashMap buckets = new ConcurrentHashMap();
+
+    /**
+     * The bucket shared by the keys that find the table full.
+     */
+    private AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+    /**
+     * When the table may next be swept.
+     */
+    private AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    private static final long SWEEP_INTERVAL = 1000000000L;
+
+    /**
+     * Creates a table of buckets.
+     *
+     * @param	rate
+     *		Tokens added to each bucket per second.
+     * @param	burst
+     *		The most tokens a bucket holds.
+     * @param	maxKeys
+     *		The number of buckets kept before expired ones are
+     *		swept out, and new keys share a bucket.
+     */
+    public
+    RateLimiter(int rate, int burst, int maxKeys)
+    {
+	interval = 1000000000L / Math.max(rate, 1);
+	tolerance = interval * (Math.max(burst, 1) - 1);
+	this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a token from a bucket.
+     *
+     * @param	key
+     *		The bucket, created full if needed.
+     *
+     * @return	<code>false</code> if the bucket is empty.
+     */
+    public boolean
+    tryAcquire(String key)
+    {
+	long now = System.nanoTime();
+	AtomicLong tat = (AtomicLong) buckets.get(key);
+	if (tat == null) {
+	    if (buckets.size() >= maxKeys) {
+		long next = nextSweep.get();
+		if ((now - next >= 0)
+			&& nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+		    sweep(now);
+		}
+	    }
+	    if (buckets.size() >= maxKeys) {
+		tat = overflow;
+	    } else {
+		AtomicLong fresh = new AtomicLong(now);
+		tat = (AtomicLong) buckets.putIfAbsent(key, fresh);
+		if (tat == null) {
+		    tat = fresh;
+		}
+	    }
+	}
+	while (true) {
+	    long current = tat.get();
+	    long base = Math.max(current, now);
+	    if (base - now > tolerance) {
+		return false;
+	    }
+	    if (tat.compareAndSet(current, base + interval)) {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Checks a bucket without taking a token.
+     *
+     * @return	<code>true</code> if the bucket is empty.
+     */
+    public boolean
+    isLimited(String key)
+    {
+	AtomicLong tat = find(key);
+	return (tat != null) && (tat.get() - System.nanoTime() > tolerance);
+    }
+
+    /**
+     * Returns the number of seconds until a bucket has a token again.
+     */
+    public int
+    waitSeconds(String key)
+    {
+	AtomicLong tat = find(key);
+	if (tat == null) {
+	    return 0;
+	}
+	long wait = tat.get() - System.nanoTime() - tolerance;
+	return (wait <= 0) ? 0 : (int) ((wait + 999999999L) / 1000000000L);
+    }
+
+    /**
+     * Returns the number of buckets in the table.
+     */
+    public int
+    size()
+    {
+	return buckets.size();
+    }
+
+    /**
+     * Returns the bucket of a key, the shared one if the key has none
+     * and the table is full, or <code>null</code>.
+     */
+    private AtomicLong
+    find(String key)
+    {
+	AtomicLong tat = (AtomicLong) buckets.get(key);
+	if ((tat == null) && (buckets.size() >= maxKeys)) {
+	    tat = overflow;
+	}
+	return tat;
+    }
+
+    /**
+     * Removes the buckets that have filled up again.
+     */
+    private void
+    sweep(long now)
+    {
+	Iterator it = buckets.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry entry = (Map.Entry) it.next();
+	    if (((AtomicLong) entry.getValue()).get() <= now) {
+		buckets.remove(entry.getKey(), entry.getValue());
+	    }
+	}
+    }
+}
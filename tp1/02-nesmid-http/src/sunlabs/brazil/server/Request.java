@@ -27,22 +27,29 @@
 
 package sunlabs.brazil.server;
 import nesmid.util.Logger;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.util.Dictionary;
 import java.util.Hashtable;
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
 
 import nesmid.util.HttpUtil;
 import sunlabs.brazil.properties.PropertiesList;
+import sunlabs.brazil.util.http.BodyInputStream;
+import sunlabs.brazil.util.http.ChunkedOutputStream;
+import sunlabs.brazil.util.http.HttpBuffer;
 import sunlabs.brazil.util.http.HttpInputStream;
 import sunlabs.brazil.util.http.MimeHeaders;
+import sunlabs.brazil.util.http.MultipartParser;
+import sunlabs.brazil.util.http.QueryData;
 
 /**
  * Represents an HTTP transaction.   A new instance is created
@@ -100,6 +107,11 @@ public class Request
     public Socket sock;
    
     protected HttpInputStream in;
+
+    /**
+     * The buffer under <code>in</code>, which parses request heads.
+     */
+    HttpBuffer head;
   
 
     /**
@@ -207,11 +219,50 @@ public class Request
     public MimeHeaders headers;
 
     /**
-     * The uploaded content of this request, usually from a POST.  Set to
-     * <code>null</code> if the request has no content.
+     * The uploaded content of this request, usually from a POST, once it
+     * has been read into memory by {@link #getPostData}.  Set to
+     * <code>null</code> if the request has no content, or if the content
+     * has not been asked for.
      */
     public byte[] postData;
 
+    /**
+     * The uploaded content of this request, as it arrives.
+     */
+    BodyInputStream body;
+
+    /**
+     * The part of a chunked upload read by {@link #getPostData} before it
+     * turned out too large, followed by the rest of the upload.
+     */
+    private InputStream replay;
+
+    /**
+     * Set by a server that reads each request, body and all, before
+     * handing it over, and so has already told a client that sent
+     * "Expect: 100-continue" to go ahead.
+     */
+    boolean bodyBuffered;
+
+    /**
+     * Set if the connection is closed with some of the upload unread, so
+     * it must read what the client still sends before closing.
+     */
+    boolean linger;
+
+    private static final InputStream EMPTY = new BodyInputStream(null, 0);
+
+    /**
+     * The state kept for the following requests on the connection.
+     */
+    RequestArena arena = new RequestArena();
+
+    /**
+     * The parser handed out by {@link #getMultipart}, closed when the
+     * request is done.
+     */
+    private MultipartParser multipart;
+
     /**
      * <code>true</code> if the client requested a persistent connection,
      * <code>false</code> otherwise.  Derived from the {@link #protocol} and
@@ -281,11 +332,30 @@ public class Request
      */
     protected boolean headersSent;
 
+    /*
+     * True once a handler has taken the socket with detach(), so the
+     * server must leave it open.
+     */
+    boolean detached;
+
     /**
-     * Time stamp for start of this request - set, but not used.
+     * Time stamp for start of this request, taken when its request line
+     * arrives.  Used to measure the request's latency.
      */
     public long startMillis;
 
+    /**
+     * <code>System.nanoTime()</code> at the start of this request, for
+     * measuring its latency more finely than <code>startMillis</code>.
+     */
+    long startNanos;
+
+    /**
+     * The name of the handler that answered this request, as given in the
+     * configuration of its {@link ChainHandler}, or <code>null</code>.
+     */
+    public String handledBy;
+
     /**
      * Create a new http request.  Requests are created by the server for
      * use by handlers.
@@ -303,10 +373,14 @@ public class Request
 
     	try 
     	{
-    		in = new HttpInputStream(
-    				new BufferedInputStream(sock.getInputStream()));
-    		out = new HttpOutputStream(
-    				new BufferedOutputStream(sock.getOutputStream()));
+    		GatheringOutputStream gathering =
+    				new GatheringOutputStream(sock.getOutputStream());
+    		gathering.target = sock.getChannel();
+    		out = new HttpOutputStream(gathering);
+    		head = new HttpBuffer(
+    				new FlushingInputStream(sock.getInputStream(), out),
+    				server.bufsize);
+    		in = new HttpInputStream(head);
     	} 
     	catch (IOException e) 
     	{
@@ -328,6 +402,40 @@ public class Request
     
    	}
 
+    /**
+     * Create a new http request that reads from and writes to the given
+     * streams, rather than to the socket itself.  Used by servers that
+     * perform their own socket I/O, such as {@link NioServer}.
+     *
+     * @param	server
+     *		The server that owns this request.
+     *
+     * @param	sock
+     *		The socket of the incoming HTTP request.
+     *
+     * @param	in
+     *		The stream the HTTP requests are read from.  If it is an
+     *		<code>HttpBuffer</code>, requests are parsed in it directly.
+     *
+     * @param	out
+     *		The stream the HTTP responses are written to.
+     */
+    protected Request(Server server, Socket sock, InputStream in,
+	    OutputStream out)
+    {
+	this.server = server;
+	this.sock = sock;
+	this.head = (in instanceof HttpBuffer) ? (HttpBuffer) in
+		: new HttpBuffer(in, server.bufsize);
+	this.in = new HttpInputStream(head);
+	this.out = new HttpOutputStream(out);
+
+	requestsLeft = server.maxRequests;
+	keepAlive = true;
+	headers = new MimeHeaders();
+	responseHeaders = new MimeHeaders();
+    }
+
     /**
      * Needed by VelocityFilter.Vrequest.  Should not be used to create
      * a <code>Request</code> object.
@@ -397,48 +505,48 @@ public class Request
 		protocol = "HTTP/1.1";
 		headers.clear();
 		postData = null;
+		body = null;
+		replay = null;
+		linger = false;
+		arena.reset();
 
 		statusCode = 200;
 		statusPhrase = "OK";
 		responseHeaders.clear();
-		startMillis = System.currentTimeMillis();
+		headersSent = false;
 		out.bytesWritten=0;
+		in.bytesRead=0;
+		handledBy = null;
 
 		/*
-		 * Get first line of HTTP request (the method line).
+		 * Read the whole head of the HTTP request (the method line and
+		 * the headers), skipping any blank lines before it.  It is
+		 * parsed in place; only the strings needed are made.
 		 */
-	 
-		String line;
-		
-		while (true) 
+
+		if (head.readHead() == false) 
 		{
-		    line = in.readLine();
-		    
-		    if (line == null) 
-		    {
-		    	return false;
-		    } 
-		    else if (line.length() > 0) 
-		    {
-		    	break;
-		    }
-		    log(Server.LOG_INFORMATIONAL, "Skipping blank line");
+		    return false;
 		}
+		startMillis = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		in.bytesRead += head.getHeadLength();
 
-		log(Server.LOG_LOG, "Request " + requestsLeft + " " + line);
-
-		try 
+		if (server.logLevel >= Server.LOG_LOG) 
 		{
-			StringTokenizer st = new StringTokenizer(line);
-			method = st.nextToken();
-			url = st.nextToken();
-			protocol = st.nextToken();
-		} 
-		catch (NoSuchElementException e) 
+		    log(Server.LOG_LOG, "Request " + requestsLeft + " "
+			    + head.getRequestLine());
+		}
+
+		if (head.getTokenCount() < 3) 
 		{
-			sendError(400, line, null);
+			sendError(400, head.getRequestLine(), null);
 			return false;
 		}
+		method = head.getMethod();
+		url = head.getPath();
+		query = head.getQuery();
+		protocol = head.getProtocol();
 
 		/*
 			if ((method.equals("GET") == false)
@@ -459,67 +567,68 @@ public class Request
 		}
 		else 
 		{
-		    sendError(505, line, null);
+		    sendError(505, head.getRequestLine(), null);
 		    return false;
 		}
-	    
-		/*
-		 * Separate query string from URL.
-		 */
 
-		int index = url.indexOf('?');
-	
-		if (index >= 0) 
-		{
-			query = url.substring(index + 1);
-			url = url.substring(0, index);
-		} 
-		else 
-		{
-			query = "";
-		}
-
-		headers.read(in);
+		head.copyHeaders(headers);
 
 		/*
-		 * Remember POST data.  "Transfer-Encoding: chunked" is not handled
-		 * yet.
+		 * Set up the POST data to be read as the handler asks for it.
+		 * A chunked body takes precedence over any Content-Length.
 		 */
 	
 		String str;
 	
-		str = getRequestHeader("Content-Length");
+		str = getRequestHeader("Transfer-Encoding");
 		
 		if (str != null) 
 		{
-			int len;
+			if (str.trim().equalsIgnoreCase("chunked") == false) 
+			{
+				sendError(501, str, null);
+				return false;
+			}
+			body = new BodyInputStream(in);
+		}
+		else if ((str = getRequestHeader("Content-Length")) != null) 
+		{
+			long len;
 			try 
 			{
-				len=Integer.parseInt(str);
-				
-				if (len > server.maxPost) 
-				{
-					sendError(413, len + " bytes is too much data to post", null);
-					return false;
-				}
-				
-				postData = new byte[len];
+				len = Long.parseLong(str.trim());
 			} 
-			catch (Exception e) 
+			catch (NumberFormatException e) 
+			{
+				len = -1;
+			}
+			if (len < 0) 
 			{
 				sendError(411, str, null);
 				return false;
-			} 
-			catch (OutOfMemoryError e) 
+			}
+			body = new BodyInputStream(in, len);
+		}
+
+		/*
+		 * "Expect: 100-continue" is answered when the handler first
+		 * reads the body.  A handler that rejects the request without
+		 * reading it saves the client the upload.
+		 */
+
+		str = getRequestHeader("Expect");
+
+		if ((str != null) && (version > 10)) 
+		{
+			if (str.trim().equalsIgnoreCase("100-continue") == false) 
 			{
-				sendError(413, str, null);
+				sendError(417, str, null);
 				return false;
 			}
-	    
-			log(Server.LOG_DIAGNOSTIC, "Request", "Reading content: " + str);
-	    
-			in.readFully(postData);
-
+			if ((body != null) && !bodyBuffered) 
+			{
+				body.setContinue(out);
+			}
 		}
 
 		str = getRequestHeader(connectionHeader);
@@ -541,16 +650,129 @@ public class Request
 		}
 
 		/*
-	   * Delay initialization until we know we need these things
+	   * Delay initialization until we know we need these things.  The
+	   * lists of the last request are reused if they were left alone.
 	   */
-		serverProps = new PropertiesList(server.props);
-		props = new PropertiesList();
-		props.addBefore(serverProps);
+		arena.setProps(this);
 
 		return true;
     }
 
-    
+    /**
+     * Returns a stream over the uploaded content of this request, which
+     * is read from the client as the caller reads it, so it can be of any
+     * size.  A chunked upload is decoded.  Once the content has been read
+     * this way it is no longer available from {@link #getPostData}.
+     * <p>
+     * If <code>getPostData</code> found the content too large, the stream
+     * still starts at the beginning of the content, even if some of it
+     * was read.
+     *
+     * @return	The content, which is empty if the request has none.
+     */
+    public InputStream
+    getBody()
+    {
+	if (replay != null) {
+	    return replay;
+	}
+	return (body == null) ? EMPTY : body;
+    }
+
+    /**
+     * Reads the uploaded content of this request into {@link #postData},
+     * if it is no larger than the server's <code>maxPost</code>.
+     * Otherwise it can still be streamed, from its start, from
+     * {@link #getBody}: a content of known length is left unread, and
+     * the part of a chunked one read to find out its size is kept and
+     * streamed first.  If the client sent
+     * "Expect: 100-continue", it has not uploaded anything yet, and the
+     * caller can answer with a 413 at no cost.
+     *
+     * @return	The content, or <code>null</code> if the request has none
+     *		or it is too large.
+     */
+    public byte[]
+    getPostData()
+	throws IOException
+    {
+	if ((postData != null) || (body == null) || (replay != null)) {
+	    return postData;
+	}
+	if (body.isChunked() == false) {
+	    String str = getRequestHeader("Content-Length");
+	    long len = Long.parseLong(str.trim());
+	    if (len > server.maxPost) {
+		log(Server.LOG_DIAGNOSTIC, "Request",
+			len + " bytes is too much data to post");
+		return null;
+	    }
+	    log(Server.LOG_DIAGNOSTIC, "Request", "Reading content: " + str);
+	}
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	byte[] tmp = arena.buffer(server.bufsize);
+	while (buf.size() <= server.maxPost) {
+	    int n = body.read(tmp, 0, Math.min(tmp.length, server.maxPost + 1));
+	    if (n < 0) {
+		postData = buf.toByteArray();
+		return postData;
+	    }
+	    buf.write(tmp, 0, n);
+	}
+	log(Server.LOG_DIAGNOSTIC, "Request", "chunked content too large");
+	replay = new SequenceInputStream(
+		new ByteArrayInputStream(buf.toByteArray()), body);
+	return null;
+    }
+
+    /**
+     * Skips whatever the handler left unread of the uploaded content, so
+     * the next request can be read.  If more than <code>maxPost</code>
+     * bytes are left, or the client is still waiting to be told to send
+     * them, the connection is closed instead, once the rest of the upload
+     * has been read and thrown away for a while: closing a socket with
+     * unread input resets it, and the client may lose the response.
+     */
+    void
+    finishBody()
+	throws IOException
+    {
+	if (multipart != null) {
+	    multipart.close();
+	    multipart = null;
+	}
+	if ((body != null)
+		&& (!keepAlive || (body.drain(server.maxPost) == false))) {
+	    keepAlive = false;
+	    linger = !bodyBuffered && !body.isFinished();
+	}
+    }
+
+    /**
+     * Returns a parser for the uploaded content of this request, if it is
+     * <code>multipart/form-data</code>.  The parts are read from the
+     * client as the caller asks for them, so the content is not bounded
+     * by <code>maxPost</code>.  Any temporary files the parts were
+     * spilled to are deleted once the handler is done with the request.
+     *
+     * @return	The parser, or <code>null</code> if the content is not
+     *		multipart.
+     */
+    public MultipartParser
+    getMultipart()
+    {
+	if (multipart == null) {
+	    String boundary = MultipartParser.getBoundary(
+		    getRequestHeader("Content-Type"));
+	    if ((boundary == null) || (body == null)) {
+		return null;
+	    }
+	    multipart = new MultipartParser(getBody(), boundary,
+		    server.bufsize);
+	}
+	return multipart;
+    }
+
     boolean
     shouldKeepAlive()
     {
@@ -572,6 +794,28 @@ public class Request
 	return sock;
     }
 
+    /**
+     * Takes the client's socket away from the server, for a handler that
+     * goes on writing to it after this request, such as to push events.
+     * Whatever has been written of the response is sent first.  The
+     * server then ends the request without closing the socket, and reads
+     * no more requests from it; closing it is up to the handler.
+     *
+     * @return	The client socket.
+     *
+     * @throws	IOException
+     *		if the response written so far couldn't be sent.
+     */
+    public Socket
+    detach()
+	throws IOException
+    {
+	out.flush();
+	keepAlive = false;
+	detached = true;
+	return sock;
+    }
+
     /**
      * Logs a message by calling <code>Server.log</code>.  Typically a
      * message is generated on the console or in a log file, if the
@@ -659,22 +903,46 @@ public class Request
     		table = new Hashtable();
     	}
     	
-    	HttpUtil.extractQuery(query, table);
-    	
-    	if (postData != null) 
-    	{	
-    		
-    		String contentType = headers.get("Content-Type");
-    		if ("application/x-www-form-urlencoded".equals(contentType)) 
-    		{
-    			HttpUtil.extractQuery(new String(postData), table);
-    		}
-    	}
-    	
-    	return table;
-    	
-    	
-    	
+    	return getParameters().copyTo(table);
+    }
+
+   /**
+     * Retrieves the query data: the query information included as part
+     * of the url and any posted "application/x-www-form-urlencoded" data.
+     * They are parsed on the first call, and the values are decoded as
+     * they are fetched, so handlers can call this as often as they like.
+     * Unlike {@link #getQueryData()}, a name may have several values.
+     *
+     * @returns	The query data of this request.
+     */
+    public QueryData getParameters()
+    {
+		QueryData params = arena.params;
+		if (arena.paramsRead) 
+		{
+			return params;
+		}
+		arena.paramsRead = true;
+		params.add(query);
+		
+		String contentType = headers.get("Content-Type");
+		if ("application/x-www-form-urlencoded".equals(contentType)) 
+		{
+			byte[] data = null;
+			try 
+			{
+				data = getPostData();
+			} 
+			catch (IOException e) 
+			{
+				keepAlive = false;
+			}
+			if (data != null) 
+			{
+				params.add(new String(data));
+			}
+		}
+		return params;
     }
 
    /**
@@ -842,6 +1110,11 @@ public class Request
     sendResponse(byte[] body, String type)
 	throws IOException
     {
+	String coding = contentCoding(type, -1, body.length);
+	if (coding != null) {
+	    sendCompressed(body, body.length, type, -1, coding);
+	    return;
+	}
 	sendHeaders(-1, type, body.length);
 	if (!method.equals("HEAD")) {
 	    out.write(body);
@@ -887,7 +1160,16 @@ public class Request
     sendResponse(String body, String type, int code)
 	throws IOException
     {
-	sendHeaders(code, type, body.length());
+	int length = body.length();
+	String coding = contentCoding(type, code, length);
+	if (coding != null) {
+	    byte[] buf = (length <= server.bufsize)
+		    ? arena.buffer(server.bufsize) : new byte[length];
+	    HttpOutputStream.getBytes(body, 0, length, buf, 0);
+	    sendCompressed(buf, length, type, code, coding);
+	    return;
+	}
+	sendHeaders(code, type, length);
 	if (!"HEAD".equals(method)) {
 	    out.writeBytes(body);
 	}
@@ -946,6 +1228,10 @@ public class Request
      * This method may set the <code>keepAlive</code> to <code>false</code>
      * before returning, if fewer than <code>length</code> bytes could be
      * read. If the request method is HEAD, only the headers are sent.
+     * <p>
+     * Like the other <code>sendResponse</code> methods, this compresses
+     * the body if the server is set to and the client accepts it.  The
+     * compressed body is then chunked, as its length isn't known.
      *
      * @param	in
      *		The input stream to read from.  
@@ -975,9 +1261,12 @@ public class Request
     {
 	HttpInputStream hin = new HttpInputStream(in);
 
-	byte[] buf = new byte[server.bufsize];
-	    
-	if (length >= 0) {
+	byte[] buf = arena.buffer(server.bufsize);
+
+	String coding = contentCoding(type, code, length);
+	if (coding != null) {
+	    sendCompressed(hin, length, type, code, coding, buf);
+	} else if (length >= 0) {
 	    sendHeaders(code, type, length);
 	    if (!method.equals("HEAD")) {
 	       if (hin.copyTo(out, length, buf) != length) {
@@ -999,16 +1288,122 @@ public class Request
 	    addHeader("Transfer-Encoding", "chunked");
 	    sendHeaders(code, type, -1);
 
-	    while (true) {
-		int count = hin.read(buf);
-		if (count < 0) {
-		    out.writeBytes("0\r\n\r\n");
-		    break;
-		}
-		out.writeBytes(Integer.toHexString(count) + "\r\n");
-		out.write(buf, 0, count);
-		out.writeBytes("\r\n");
+	    ChunkedOutputStream chunked =
+		    new ChunkedOutputStream(out, server.bufsize);
+	    hin.copyTo(chunked, -1, buf);
+	    chunked.close();
+	}
+    }
+
+    /**
+     * Sends an HTTP response with the rest of a file, from its current
+     * position, as the body.  This is the same as sending the file as an
+     * <code>InputStream</code>, except that if the body goes straight to
+     * a socket with a channel, neither compressed nor otherwise filtered,
+     * the file is handed to the socket with
+     * <code>FileChannel.transferTo</code>: the kernel then copies it
+     * without it passing through the server.  A file smaller than the
+     * server's buffer is still copied, so its body can go out in one
+     * write with the headers.
+     *
+     * @param	in
+     *		The file, positioned at the start of the body.
+     * @param	length
+     *		The number of bytes to send.  May be &lt; 0 to send the
+     *		rest of the file, which is then copied.
+     * @param	type
+     *		The MIME type of the response, or <code>null</code> to
+     *		preserve the existing "Content-Type" response header.
+     * @param	code
+     *		The HTTP status code for the response, or &lt; 0 to preserve
+     *		the existing status code.
+     *
+     * @throws	IOException
+     *		if there was an I/O error while sending the response to
+     *		the client.
+     *
+     * @see	#sendResponse(InputStream, int, String, int)
+     */
+    public void
+    sendResponse(FileInputStream in, int length, String type, int code)
+	throws IOException
+    {
+	if ((length <= server.bufsize) || !out.canTransfer()
+		|| (contentCoding(type, code, length) != null)) {
+	    sendResponse((InputStream) in, length, type, code);
+	    return;
+	}
+	sendHeaders(code, type, length);
+	if (!method.equals("HEAD")) {
+	    FileChannel file = in.getChannel();
+	    if (out.transfer(file, file.position(), length) != length) {
+		keepAlive = false;
+	    }
+	}
+    }
+
+    /**
+     * Returns the content coding to compress a response with, if the
+     * server compresses responses of this type and size and the client
+     * accepts it.
+     */
+    private String
+    contentCoding(String type, int code, int length)
+    {
+	if (server.compressor == null) {
+	    return null;
+	}
+	return server.compressor.choose(this, type, code, length);
+    }
+
+    /**
+     * Sends a response body held in memory, compressed.
+     */
+    private void
+    sendCompressed(byte[] body, int length, String type, int code,
+	    String coding)
+	throws IOException
+    {
+	byte[] data = server.compressor.compress(body, 0, length, coding);
+	responseHeaders.put("Content-Encoding", coding);
+	sendHeaders(code, type, data.length);
+	out.write(data);
+    }
+
+    /**
+     * Sends a response body read from a stream, compressed as it is
+     * read.  As the compressed length isn't known in advance, the body
+     * is chunked, or for an HTTP/1.0 client ended by closing the
+     * connection.
+     */
+    private void
+    sendCompressed(HttpInputStream in, int length, String type, int code,
+	    String coding, byte[] buf)
+	throws IOException
+    {
+	responseHeaders.put("Content-Encoding", coding);
+	responseHeaders.remove("Content-Length");
+	OutputStream body;
+	if (version <= 10) {
+	    keepAlive = false;
+	    sendHeaders(code, type, -1);
+	    body = out;
+	} else {
+	    addHeader("Transfer-Encoding", "chunked");
+	    sendHeaders(code, type, -1);
+	    body = new ChunkedOutputStream(out, server.bufsize);
+	}
+	Compressor.CompressedOutputStream z =
+		server.compressor.open(body, coding);
+	try {
+	    if ((in.copyTo(z, length, buf) != length) && (length >= 0)) {
+		keepAlive = false;
 	    }
+	} finally {
+	    z.finish();
+	}
+	if (body != out) {
+	    body.close();
 	}
     }
 
@@ -1046,6 +1441,7 @@ public class Request
     {
 	setStatus(code);
 	server.errorCount++;
+	server.metrics.errors.increment();
 
 	String message = clientMessage;
 	if (message == null) {
@@ -1153,6 +1549,14 @@ public class Request
 	if (server.name != null) {
 	    responseHeaders.putIfNotPresent("Server", server.name);
 	}
+	if ((body != null) && body.isContinuePending()) {
+	    /*
+	     * Answered without reading the body: the client may or may not
+	     * send it now, so the connection can't be reused.
+	     */
+	    body.setContinue(null);
+	    keepAlive = false;
+	}
 	String str = shouldKeepAlive() ? "Keep-Alive" : "close";
 	responseHeaders.put(connectionHeader, str);
         if (length >= 0) {
@@ -1167,6 +1571,34 @@ public class Request
 	headersSent = true;
     }
 
+    /**
+     * Sends a response kept in memory, by a {@link CacheHandler} or a
+     * {@link FileCache}.  The headers other than the ones
+     * <code>sendHeaders</code> adds were encoded ahead of time, and go out
+     * as they are.
+     *
+     * @param	code
+     *		The HTTP status code.
+     * @param	headers
+     *		The encoded header lines.
+     * @param	body
+     *		The body, which is not sent for a <code>HEAD</code>.
+     */
+    void
+    sendCached(int code, byte[] headers, byte[] body)
+	throws IOException
+    {
+	arena.extraHeaders = headers;
+	try {
+	    sendHeaders(code, null, body.length);
+	} finally {
+	    arena.extraHeaders = null;
+	}
+	if (!method.equals("HEAD")) {
+	    out.write(body);
+	}
+    }
+
     /**
      * Send the response headers to the client.
      *  This consists of standard plus added headers.  The handler is reponsible
@@ -1235,6 +1667,46 @@ public class Request
 	return server.protocol + "://" + host;
     }
 
+    /**
+     * Reads from the socket, but first flushes the responses still
+     * buffered for the client whenever the read might block.  A kept-alive
+     * response can then be left in the buffer: if the client has
+     * pipelined further requests, their responses go out together in one
+     * write, and otherwise the response is sent as soon as the server
+     * waits for the next request.
+     */
+    static class FlushingInputStream
+	extends FilterInputStream
+    {
+	OutputStream pending;
+
+	FlushingInputStream(InputStream in, OutputStream pending)
+	{
+	    super(in);
+	    this.pending = pending;
+	}
+
+	public int
+	read()
+	    throws IOException
+	{
+	    if (in.available() == 0) {
+		pending.flush();
+	    }
+	    return in.read();
+	}
+
+	public int
+	read(byte[] buf, int off, int len)
+	    throws IOException
+	{
+	    if (in.available() == 0) {
+		pending.flush();
+	    }
+	    return in.read(buf, off, len);
+	}
+    }
+
     /**
      * The <code>HttpOutputStream</code> provides the convenience method
      * <code>writeBytes</code> for writing the byte representation of a
@@ -1255,42 +1727,131 @@ public class Request
 
         public int bytesWritten = 0;
 
+	/**
+	 * The encoded head of the response, held back until the first
+	 * bytes of the body or a flush, so both go out in one write.
+	 */
+	private byte[] head;
+	private int headLength;
+
+	private byte[] scratch;
+
 	public
 	HttpOutputStream(OutputStream out)
 	{
 	    super(out);
 	}
 
+	/**
+	 * Writes the bytes of a string, each character as one byte.
+	 */
 	public void
 	writeBytes(String s)
 	    throws IOException
 	{
 	    int len = s.length();
-	    for (int i = 0; i < len; i++) {
-		this.out.write((byte) s.charAt(i));
+	    if (scratch == null) {
+		scratch = new byte[1024];
+	    }
+	    for (int i = 0; i < len; i += scratch.length) {
+		int n = Math.min(len - i, scratch.length);
+		getBytes(s, i, i + n, scratch, 0);
+		write(scratch, 0, n);
+	    }
+	}
+
+	/**
+	 * Copies characters of a string into a buffer, each as one byte,
+	 * as <code>String.getBytes(int, int, byte[], int)</code> does.
+	 */
+	static void
+	getBytes(String s, int from, int to, byte[] buf, int off)
+	{
+	    for (int i = from; i < to; i++) {
+		buf[off++] = (byte) s.charAt(i);
 	    }
-	    bytesWritten += len;
 	}
 
-        public void write(byte b) throws IOException {
+        public void write(int b) throws IOException {
+	    writeHead();
             this.out.write(b);
 	    bytesWritten++;
         }
 
         public void
         write(byte[] buf, int off, int len) throws IOException {
-            this.out.write(buf, off, len);
+	    if ((headLength > 0) && (this.out instanceof GatheringOutputStream)) {
+		int n = headLength;
+		headLength = 0;
+		((GatheringOutputStream) this.out).write(head, 0, n,
+			buf, off, len);
+	    } else {
+		writeHead();
+		this.out.write(buf, off, len);
+	    }
 	    bytesWritten += len;
         }
 
+	public void
+	flush()
+	    throws IOException
+	{
+	    writeHead();
+	    this.out.flush();
+	}
+
+	/**
+	 * Encodes the status line and headers of the response.  They are
+	 * written along with the start of the body.
+	 */
 	public void
 	sendHeaders(Request request)
 	    throws IOException
 	{
-	    writeBytes(request.protocol + " " + request.statusCode + " " +
-		    request.statusPhrase + "\r\n");
-	    request.responseHeaders.print(this.out);
-	    writeBytes("\r\n");
+	    writeHead();
+	    headLength = request.arena.encodeHead(request);
+	    head = request.arena.head;
+	    bytesWritten += headLength;
+	}
+
+	/**
+	 * Returns <code>true</code> if file bodies written to this stream
+	 * can be handed straight to the socket, with {@link #transfer}.
+	 */
+	public boolean
+	canTransfer()
+	{
+	    return (this.out instanceof GatheringOutputStream)
+		    && (((GatheringOutputStream) this.out).target != null);
+	}
+
+	/**
+	 * Sends the response head, then part of a file straight from the
+	 * file to the socket.  Only valid if {@link #canTransfer} says so.
+	 *
+	 * @return	The number of bytes of the file sent, fewer than
+	 *		<code>count</code> only if the file ends first.
+	 */
+	public long
+	transfer(FileChannel file, long position, long count)
+	    throws IOException
+	{
+	    writeHead();
+	    long n = ((GatheringOutputStream) this.out).transfer(file,
+		    position, count);
+	    bytesWritten += n;
+	    return n;
+	}
+
+	private void
+	writeHead()
+	    throws IOException
+	{
+	    if (headLength > 0) {
+		int n = headLength;
+		headLength = 0;
+		this.out.write(head, 0, n);
+	    }
 	}
     }
 
@@ -0,0 +1,249 @@
+package sunlabs.brazil.server;
+
+import java.util.Properties;
+import nesmid.util.HttpUtil;
+import sunlabs.brazil.properties.PropertiesList;
+import sunlabs.brazil.util.http.MimeHeaders;
+import sunlabs.brazil.util.http.QueryData;
+
+/**
+ * The scratch state a {@link Request} reuses from one request to the
+ * next on the same connection, so a kept-alive connection makes little
+ * garbage per request.  It holds the copy buffer, the buffer the response
+ * head is encoded into, the query view and the two-element
+ * <code>props</code> list.
+ * <p>
+ * Nothing here is handed back to a request unless it is certain no
+ * handler still holds on to it: the <code>props</code> list is only
+ * reused if the handlers left it as they found it.
+ */
+class RequestArena
+{
+    /**
+     * The parameters of the current request.
+     */
+    QueryData params = new QueryData();
+
+    /**
+     * <code>true</code> once {@link #params} has been filled in for the
+     * current request.
+     */
+    boolean paramsRead;
+
+    private byte[] buf;
+
+    /**
+     * The encoded status line and headers of the response.
+     */
+    byte[] head = new byte[512];
+
+    /**
+     * Header lines encoded ahead of time, added after the others by
+     * {@link #encodeHead}, or <code>null</code>.
+     */
+    byte[] extraHeaders;
+
+    private PropertiesList props;
+    private PropertiesList serverProps;
+    private Properties local;
+
+    /**
+     * The status lines for HTTP/1.0 and HTTP/1.1 responses with the
+     * standard phrase, by status code, with their line break.
+     */
+    private static final byte[][] STATUS_10 = new byte[600][];
+    private static final byte[][] STATUS_11 = new byte[600][];
+    private static final String[] PHRASES = new String[600];
+
+    /**
+     * Header lines sent with most responses, found by the identity of
+     * their name and value strings.
+     */
+    private static final String[][] LINES = {
+	{"Connection", "Keep-Alive"},
+	{"Connection", "close"},
+	{"Server", "Brazil/2.0"},
+	{"Content-Type", "text/html"},
+	{"Content-Type", "text/plain"},
+	{"Transfer-Encoding", "chunked"},
+    };
+    private static final byte[][] ENCODED_LINES = new byte[LINES.length][];
+
+    static {
+	for (int code = 100; code < 600; code++) {
+	    String phrase = HttpUtil.getStatusPhrase(code);
+	    if (phrase.equals("Error") == false) {
+		PHRASES[code] = phrase;
+		STATUS_10[code] = ("HTTP/1.0 " + code + " " + phrase
+			+ "\r\n").getBytes();
+		STATUS_11[code] = ("HTTP/1.1 " + code + " " + phrase
+			+ "\r\n").getBytes();
+	    }
+	}
+	for (int i = 0; i < LINES.length; i++) {
+	    ENCODED_LINES[i] = (LINES[i][0] + ": " + LINES[i][1]
+		    + "\r\n").getBytes();
+	}
+    }
+
+    /**
+     * Gets ready for the next request.  Only what the last request
+     * used is reset.
+     */
+    void
+    reset()
+    {
+	if (paramsRead) {
+	    params.reset();
+	    paramsRead = false;
+	}
+    }
+
+    /**
+     * Returns the copy buffer, of at least the given size.  It is only
+     * valid until the next call.
+     */
+    byte[]
+    buffer(int size)
+    {
+	if ((buf == null) || (buf.length < size)) {
+	    buf = new byte[size];
+	}
+	return buf;
+    }
+
+    /**
+     * Encodes the status line and headers of the response into
+     * {@link #head}, ending with the blank line.  The usual status lines
+     * and header lines, and the current <code>Date</code>, are copied
+     * already encoded.
+     *
+     * @return	The number of bytes encoded.
+     */
+    int
+    encodeHead(Request request)
+    {
+	int n = 0;
+	int code = request.statusCode;
+	byte[][] table = null;
+	if (request.protocol == "HTTP/1.1") {
+	    table = STATUS_11;
+	} else if (request.protocol == "HTTP/1.0") {
+	    table = STATUS_10;
+	}
+	if ((table != null) && (code >= 0) && (code < PHRASES.length)
+		&& (request.statusPhrase == PHRASES[code])) {
+	    n = append(table[code], n);
+	} else {
+	    n = append(request.protocol, n);
+	    n = append(" ", n);
+	    n = append(code, n);
+	    n = append(" ", n);
+	    n = append(request.statusPhrase, n);
+	    n = append("\r\n", n);
+	}
+	MimeHeaders headers = request.responseHeaders;
+	int size = headers.size();
+	for (int i = 0; i < size; i++) {
+	    String key = headers.getKey(i);
+	    String value = headers.get(i);
+	    int line = LINES.length;
+	    while ((--line >= 0)
+		    && ((LINES[line][0] != key) || (LINES[line][1] != value))) {
+		/* next */
+	    }
+	    byte[] date;
+	    if (line >= 0) {
+		n = append(ENCODED_LINES[line], n);
+	    } else if ((key == "Date")
+		    && ((date = HttpUtil.dateLine(value)) != null)) {
+		n = append(date, n);
+	    } else {
+		n = append(key, n);
+		n = append(": ", n);
+		n = append(value, n);
+		n = append("\r\n", n);
+	    }
+	}
+	if (extraHeaders != null) {
+	    n = append(extraHeaders, n);
+	}
+	return append("\r\n", n);
+    }
+
+    private int
+    append(byte[] bytes, int n)
+    {
+	grow(n, bytes.length);
+	System.arraycopy(bytes, 0, head, n, bytes.length);
+	return n + bytes.length;
+    }
+
+    private int
+    append(String s, int n)
+    {
+	if (s == null) {
+	    s = "null";
+	}
+	int len = s.length();
+	grow(n, len);
+	for (int i = 0; i < len; i++) {
+	    head[n++] = (byte) s.charAt(i);
+	}
+	return n;
+    }
+
+    private int
+    append(int value, int n)
+    {
+	if ((value < 100) || (value > 999)) {
+	    return append(Integer.toString(value), n);
+	}
+	grow(n, 3);
+	head[n++] = (byte) ('0' + value / 100);
+	head[n++] = (byte) ('0' + value / 10 % 10);
+	head[n++] = (byte) ('0' + value % 10);
+	return n;
+    }
+
+    private void
+    grow(int n, int more)
+    {
+	if (n + more > head.length) {
+	    byte[] tmp = new byte[Math.max(head.length * 2, n + more)];
+	    System.arraycopy(head, 0, tmp, 0, n);
+	    head = tmp;
+	}
+    }
+
+    /**
+     * Sets up <code>request.props</code> and
+     * <code>request.serverProps</code>, as an empty set of properties in
+     * front of the server's.  The lists from the last request are used
+     * again if the request still has them, they are still linked only to
+     * each other and they still wrap the same dictionaries.
+     */
+    void
+    setProps(Request request)
+    {
+	if ((props != null)
+		&& (request.props == props)
+		&& (request.serverProps == serverProps)
+		&& (props.getPrior() == null)
+		&& (props.getNext() == serverProps)
+		&& (serverProps.getNext() == null)
+		&& (props.getWrapped() == local)
+		&& (serverProps.getWrapped() == request.server.props)) {
+	    if (local.isEmpty() == false) {
+		local.clear();
+	    }
+	    return;
+	}
+	local = new Properties();
+	serverProps = new PropertiesList(request.server.props);
+	props = new PropertiesList(local);
+	props.addBefore(serverProps);
+	request.serverProps = serverProps;
+	request.props = props;
+    }
+}
@@ -28,13 +28,30 @@
 package sunlabs.brazil.server;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import nesmid.util.Logger;
 import sunlabs.brazil.properties.PropertiesList;
+import sunlabs.brazil.util.Counter;
 
 /**
  * Yet another HTTP/1.1 server.
@@ -47,7 +64,11 @@ import sunlabs.brazil.properties.PropertiesList;
  * <p>
  * Limitations:
  * <ul>
- * <li>Starts a new thread for each connection.  This may be expensive.  
+ * <li>Starts a new thread for each connection, unless a bounded
+ *     worker pool is configured with {@link #poolMax}.  This may be
+ *     expensive.  
+ * <li>Connections are accepted by a single thread, unless more are
+ *     configured with {@link #acceptors}.
  * </ul>
  *
  * @author	Stephen Uhler (stephen.uhler@sun.com)
@@ -149,13 +170,127 @@ public class Server
 
     /**
      * The max number of threads allowed for the entire VM
-     * (default is 250).
+     * (default is 250).  When <code>virtualThreads</code> is set, this
+     * is instead the max number of connections served at once.
      */
     public int maxThreads = 15; // TINI maxThreads = 250;
 
     /**
-     * Maximum amout of POST data allowed per request (in bytes)
-     * (default = 2Meg).
+     * If set, each connection is served on its own virtual thread, and
+     * <code>maxThreads</code> limits the number of connections served
+     * at once; connections over the limit are refused with a
+     * <code>503</code>.  Ignored, with a warning, if the VM does not
+     * support virtual threads.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * If set, a kept-alive connection that is waiting for its next
+     * request gives up its thread: the socket is watched by a single
+     * shared selector thread, and the connection is handed back to a
+     * thread only when the next request starts to arrive.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean parkIdle = false;
+
+    /**
+     * Watches the idle connections when <code>parkIdle</code> is set.
+     */
+    Parker parker = null;
+
+    /**
+     * The number of threads accepting connections.  With more than one,
+     * the server thread and <code>acceptors - 1</code> extra threads all
+     * accept from the listening socket, so a burst of new connections
+     * is not held up behind a single <code>accept</code> loop.
+     * <p>
+     * The default value is <code>1</code>.
+     */
+    public int acceptors = 1;
+
+    /**
+     * If set, and <code>acceptors</code> is more than one, each acceptor
+     * gets its own listening socket, all bound to the same address with
+     * <code>SO_REUSEPORT</code>, and the kernel spreads new connections
+     * among them.  Ignored, with a warning, if the VM or OS does not
+     * support the option; the acceptors then share one socket.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean reusePort = false;
+
+    /**
+     * If set, the listening socket is replaced at startup by one created
+     * from a <code>ServerSocketChannel</code>, so the sockets it accepts
+     * have channels: large files are then sent with
+     * <code>transferTo</code>, and the {@link EventSourceHandler} can be
+     * used.  Only a plain <code>ServerSocket</code> is replaced; with an
+     * SSL or other special one, the server fails to start instead.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean channels = false;
+
+    /**
+     * The listening sockets, one per acceptor.  They are all the same
+     * socket unless <code>reusePort</code> is in effect.
+     */
+    ServerSocket[] listeners;
+
+    /**
+     * Maximum number of worker threads in the connection pool.  If
+     * <code>0</code>, no pool is used and a new thread is started for
+     * each accepted connection, throttled by <code>maxThreads</code>.
+     * <p>
+     * The default value is <code>0</code>.
+     */
+    public int poolMax = 0;
+
+    /**
+     * Number of worker threads kept alive in the connection pool when it
+     * is idle.  Workers above this number are only started once the
+     * accept queue is full, and exit after <code>timeout</code>
+     * milliseconds without work.  If &lt; 0, <code>poolMax</code> is used.
+     * <p>
+     * The default value is <code>-1</code>.
+     */
+    public int poolCore = -1;
+
+    /**
+     * Maximum number of accepted connections waiting for a pool worker.
+     * Connections arriving when the queue is full are refused with a
+     * <code>503</code> response.
+     * <p>
+     * The default value is <code>50</code>.
+     */
+    public int poolQueue = 50;
+
+    /**
+     * Number of seconds a refused client is asked to wait, sent in the
+     * <code>Retry-After</code> header of the <code>503</code> response.
+     * <p>
+     * The default value is <code>5</code>.
+     */
+    public int retryAfter = 5;
+
+    /**
+     * Runs the {@link Connection} for each accepted socket.  If
+     * <code>null</code> when the server is started, and
+     * <code>poolMax</code> is set, a bounded pool is created.  A
+     * sub-class may install its own <code>Executor</code> before the
+     * server is started.  An executor that throws
+     * <code>RejectedExecutionException</code> causes the connection to be
+     * refused with a <code>503</code> response.
+     */
+    public Executor executor = null;
+
+    /**
+     * Maximum amout of POST data read into memory per request (in bytes)
+     * (default = 2Meg).  Larger uploads can still be streamed with
+     * {@link Request#getBody}.
      */
     public int maxPost=8182; // TINI maxPost = 2097152;		// 2 Meg
 
@@ -166,20 +301,195 @@ public class Server
     public int bufsize = 8192;
     
     /**
-     * Count of accepted connections so far.
+     * Count of accepted connections so far.  This, like
+     * <code>requestCount</code> and <code>errorCount</code>, is a plain
+     * <code>int</code> updated without synchronization by every thread
+     * serving clients, and so only approximate; {@link #metrics} has the
+     * exact counts.
+     *
+     * @see	Metrics#accepts
      */
     public int acceptCount = 0;
     
     /**
-     * Count of HTTP requests received so far.
+     * Count of HTTP requests received so far, approximately.
+     *
+     * @see	Metrics#requests
      */
     public int requestCount = 0;
 
     /**
-     * Count of errors that occurred so far.
+     * Count of errors that occurred so far, approximately.
+     *
+     * @see	Metrics#errors
      */
     public int errorCount = 0;
 
+    /**
+     * The server's counters and latency histograms.
+     */
+    public Metrics metrics = new Metrics();
+
+    /**
+     * Count of connections refused because the server was too busy.
+     */
+    public Counter rejectCount = new Counter();
+
+    /**
+     * If set, the number of requests handled at once is limited by an
+     * {@link AdaptiveLimiter}, which raises the limit while latency stays
+     * low and cuts it when latency rises.  Requests over the limit are
+     * answered at once with a <code>503</code>.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean adaptiveLimit = false;
+
+    /**
+     * The lowest concurrency limit, with <code>adaptiveLimit</code>.
+     * <p>
+     * The default value is <code>4</code>.
+     */
+    public int limitMin = 4;
+
+    /**
+     * The highest concurrency limit, with <code>adaptiveLimit</code>.  If
+     * <code>0</code>, <code>maxThreads</code> is used.
+     */
+    public int limitMax = 0;
+
+    /**
+     * The latency, in milliseconds, above which the concurrency limit is
+     * cut, with <code>adaptiveLimit</code>.  If <code>0</code>, it is
+     * twice the latency of the fastest recent requests.
+     */
+    public int limitLatency = 0;
+
+    /**
+     * The concurrency limiter, if <code>adaptiveLimit</code> is set.
+     */
+    public AdaptiveLimiter limiter = null;
+
+    /**
+     * Count of requests refused by the concurrency limiter.
+     */
+    public Counter shedCount = new Counter();
+
+    /**
+     * The number of requests a second allowed from each client address.
+     * A client going faster is answered with a <code>429</code> and its
+     * connection is closed; while its bucket stays empty, its new
+     * connections are refused as soon as they are accepted.  If
+     * <code>0</code>, clients are not limited.
+     */
+    public int rateLimit = 0;
+
+    /**
+     * The number of requests a client may make at once before
+     * <code>rateLimit</code> applies.  If <code>0</code>,
+     * <code>rateLimit</code> is used.
+     */
+    public int rateBurst = 0;
+
+    /**
+     * The number of client addresses tracked by each rate limit.  While
+     * a limit tracks this many, the addresses it doesn't know share a
+     * single allowance.
+     * <p>
+     * The default value is <code>10000</code>.
+     */
+    public int rateClients = 10000;
+
+    /**
+     * URL prefixes that have their own per-client rate limit, in
+     * requests a second, given by the same element of
+     * <code>prefixRates</code>.  These apply on top of
+     * <code>rateLimit</code>.
+     */
+    public String[] ratePrefixes = null;
+
+    /**
+     * The rate limits for <code>ratePrefixes</code>.
+     */
+    public int[] prefixRates = null;
+
+    /**
+     * Count of requests and connections refused by a rate limit.
+     */
+    public Counter throttleCount = new Counter();
+
+    RateLimiter clientLimiter = null;
+    RateLimiter[] prefixLimiters = null;
+
+    /**
+     * If <code>true</code>, text responses are compressed with
+     * <code>gzip</code> or <code>deflate</code> for the clients that
+     * accept it.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean compress = false;
+
+    /**
+     * The smallest response body, in bytes, that is compressed, with
+     * <code>compress</code>.
+     * <p>
+     * The default value is <code>256</code>.
+     */
+    public int compressMin = 256;
+
+    /**
+     * The compression level, from <code>1</code> (fastest) to
+     * <code>9</code> (smallest), with <code>compress</code>.
+     * <p>
+     * The default value is <code>6</code>.
+     */
+    public int compressLevel = 6;
+
+    /**
+     * The prefixes of the types compressed, with <code>compress</code>.
+     * If <code>null</code>, {@link Compressor#TYPES} are.
+     */
+    public String[] compressTypes = null;
+
+    /**
+     * The compressor, if <code>compress</code> is set.
+     */
+    public Compressor compressor = null;
+
+    /**
+     * How long, in milliseconds, the server waits for the requests being
+     * handled to finish when it is stopped.  Once the server starts to
+     * stop, it accepts no new connections, closes the connections that
+     * are idle between requests, and answers the requests in progress
+     * with <code>Connection: close</code>.  Any still running after this
+     * long are aborted.
+     * <p>
+     * The default value is <code>0</code>, which aborts them at once.
+     */
+    public int drainTimeout = 0;
+
+    /**
+     * Set once the server has started to stop.
+     */
+    public volatile boolean draining = false;
+
+    /**
+     * How long, in milliseconds, the last shutdown took to drain.
+     */
+    public long shutdownMillis = 0;
+
+    /**
+     * Count of requests aborted because they were still being handled
+     * when the server stopped.
+     */
+    public int abortedCount = 0;
+
+    /**
+     * The connections that currently have a thread.
+     */
+    HashSet active = new HashSet();
+
     /**
      * The diagnostic level. 0->least, 5->most
      */
@@ -260,6 +570,36 @@ public class Server
 	    return false;
 	}
         group = new ThreadGroup(prefix);
+	if ((executor == null) && virtualThreads) {
+	    if (VirtualThreadExecutor.isAvailable()) {
+		executor = new VirtualThreadExecutor(maxThreads);
+	    } else {
+		log(LOG_WARNING, "server",
+			"virtual threads not supported by this VM");
+	    }
+	}
+	if ((executor == null) && (poolMax > 0)) {
+	    executor = newPool();
+	}
+	if ((limiter == null) && adaptiveLimit) {
+	    limiter = new AdaptiveLimiter(limitMin,
+		    (limitMax > 0) ? limitMax : maxThreads, limitLatency);
+	}
+	if ((compressor == null) && compress) {
+	    compressor = new Compressor(compressLevel, compressMin,
+		    compressTypes, maxThreads);
+	}
+	if (rateLimit > 0) {
+	    clientLimiter = new RateLimiter(rateLimit,
+		    (rateBurst > 0) ? rateBurst : rateLimit, rateClients);
+	}
+	if ((ratePrefixes != null) && (prefixRates != null)) {
+	    prefixLimiters = new RateLimiter[ratePrefixes.length];
+	    for (int i = 0; i < prefixLimiters.length; i++) {
+		prefixLimiters[i] = new RateLimiter(prefixRates[i],
+			prefixRates[i], rateClients);
+	    }
+	}
 	if (hostName == null) {
 	    try {
 	       hostName = InetAddress.getLocalHost().getHostAddress();
@@ -275,6 +615,20 @@ public class Server
 	    Thread.currentThread().setName("server");
 	}
 
+	/*
+	 * The handlers may want to know whether the sockets will have
+	 * channels.
+	 */
+
+	if (channels) {
+	    try {
+		useChannel();
+	    } catch (IOException e) {
+		log(LOG_ERROR, "server", "Can't open listening channel: " + e);
+		return false;
+	    }
+	}
+
 	handler = ChainHandler.initHandler(this, prefix, handlerName);
 
 	if (handler == null) {
@@ -284,6 +638,35 @@ public class Server
 	    log(LOG_ERROR, handlerName, "Initilization failure");
 	    return false;
 	}
+
+	if (parkIdle) {
+	    try {
+		useChannel();
+		parker = new Parker(this);
+		parker.start();
+	    } catch (IOException e) {
+		log(LOG_ERROR, "server", "Can't park idle connections: " + e);
+		return false;
+	    }
+	}
+	listeners = new ServerSocket[Math.max(acceptors, 1)];
+	if (reusePort && (listeners.length > 1)) {
+	    try {
+		openShards();
+	    } catch (IOException e) {
+		if (listen.isClosed()) {
+		    log(LOG_ERROR, "server", "Can't open listeners: " + e);
+		    return false;
+		}
+		log(LOG_WARNING, "server",
+			"Can't use SO_REUSEPORT, sharing one socket: " + e);
+	    }
+	}
+	for (int i = 0; i < listeners.length; i++) {
+	    if (listeners[i] == null) {
+		listeners[i] = listen;
+	    }
+	}
 	return true;
     }
 
@@ -307,61 +690,24 @@ public class Server
 		return;
 	    }
 
-	    listen.setSoTimeout(0);
-	    while (true) 
-	    {
-		/*
-		 * Blocks until we have a connection on the socket.
-		 */
-		Socket sock = listen.accept();
-		
-		String threadName = sock.getInetAddress().getHostAddress();
-		
-		log(LOG_INFORMATIONAL, threadName, "new connection");
-
-		allowed:
-		if (restrict != null) 
-		{
-		    InetAddress addr = sock.getInetAddress();
-		    for (int i = 0; i < restrict.length; i++) 
-		    {
-		    	if (restrict[i].equals(addr)) {
-		    		break allowed;
-		    	}
-		    }
-		    log(LOG_DIAGNOSTIC, addr, "rejected request");
-		    sock.close();
-		    continue;
-		}
-
-		// A pseudo-busy loop!!!
-
-		boolean warn=false;
-		
-		while (Thread.activeCount() > maxThreads) 
-		{
-		    if (!warn) 
-		    {
-			log(LOG_WARNING, sock, 
-				"Too many threads: " + acceptCount);
-		    }
-		    Thread.yield();
-		    warn = true;
-		}
-	
-		new Thread(group, new Connection(this, sock),
-			threadName + "-" + acceptCount).start();
-		acceptCount++;
-	    }
+	    startAcceptors();
+	    accept(listen);
 	} catch (IOException e) {
 	    /*
 	     * Quit anyhow.
 	     */
 	} finally {
 	    try {
-		listen.close();
+		closeListeners();
+		drain();
+		if (executor instanceof ExecutorService) {
+		    ((ExecutorService) executor).shutdownNow();
+		}
+		if (parker != null) {
+		    parker.close();
+		}
 
-		Thread[] sub = new Thread[15]; // TINI
+		Thread[] sub = new Thread[group.activeCount() + 1];
 		int count;
 		while ((count = group.enumerate(sub, true)) > 0) {
 		    for (int i = 0; i < count; i++) {
@@ -377,13 +723,576 @@ public class Server
     }
 
     /**
-     * Stop the server, and kill all pending requests
+     * Lets the requests in progress finish, for up to
+     * <code>drainTimeout</code> milliseconds, once the listening sockets
+     * are closed.  Idle connections are closed straight away, and any
+     * connection still busy at the deadline has its socket closed.  The
+     * time taken and the number of requests aborted are logged.
+     */
+    protected void
+    drain()
+    {
+	long start = System.currentTimeMillis();
+	long deadline = start + Math.max(drainTimeout, 0);
+
+	draining = true;
+	if (executor instanceof ExecutorService) {
+	    ((ExecutorService) executor).shutdown();
+	}
+	if (parker != null) {
+	    parker.close();
+	}
+
+	int aborted = 0;
+	synchronized (active) {
+	    while (true) {
+		closeIdle();
+		if (active.isEmpty() && (!(executor instanceof ExecutorService)
+			|| ((ExecutorService) executor).isTerminated())) {
+		    break;
+		}
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0) {
+		    break;
+		}
+		try {
+		    active.wait(Math.min(left, 100));
+		} catch (InterruptedException e) {
+		    break;
+		}
+	    }
+	    Iterator it = active.iterator();
+	    while (it.hasNext()) {
+		Connection conn = (Connection) it.next();
+		if (conn.inRequest) {
+		    aborted++;
+		}
+		try {
+		    conn.sock.close();
+		} catch (IOException e) {}
+	    }
+	}
+	abortedCount += aborted;
+	shutdownMillis = System.currentTimeMillis() - start;
+	log(LOG_WARNING, null, "drained in " + shutdownMillis + " ms, "
+		+ aborted + " requests aborted");
+    }
+
+    /**
+     * Closes the kept-alive connections that are waiting for their next
+     * request.  A new connection is not idle until it has been answered
+     * once, so a request accepted just before the server started to stop
+     * still gets its response.  Called while draining, with <code>active</code> locked.
+     */
+    protected void
+    closeIdle()
+    {
+	Iterator it = active.iterator();
+	while (it.hasNext()) {
+	    Connection conn = (Connection) it.next();
+	    if (conn.idle) {
+		try {
+		    conn.sock.close();
+		} catch (IOException e) {}
+	    }
+	}
+    }
+
+    /**
+     * Notes that a connection has a thread.
+     */
+    void
+    enter(Connection conn)
+    {
+	synchronized (active) {
+	    active.add(conn);
+	}
+    }
+
+    /**
+     * Notes that a connection has given up its thread.
+     */
+    void
+    leave(Connection conn)
+    {
+	synchronized (active) {
+	    active.remove(conn);
+	    active.notifyAll();
+	}
+    }
+
+    /**
+     * Starts a thread for each acceptor but the first, which is run by
+     * the server thread itself.
+     */
+    protected void
+    startAcceptors()
+    {
+	for (int i = 1; i < listeners.length; i++) {
+	    final ServerSocket sock = listeners[i];
+	    Runnable acceptor = new Runnable() {
+		public void
+		run()
+		{
+		    try {
+			accept(sock);
+		    } catch (IOException e) {
+			log(LOG_INFORMATIONAL, Thread.currentThread().getName(),
+				"stopped: " + e);
+		    }
+		}
+	    };
+	    new Thread(group, acceptor, prefix + "acceptor-" + i).start();
+	}
+    }
+
+    /**
+     * Closes all the listening sockets, which stops the acceptors.
+     */
+    void
+    closeListeners()
+    {
+	try {
+	    listen.close();
+	} catch (IOException e) {}
+	if (listeners == null) {
+	    return;
+	}
+	for (int i = 0; i < listeners.length; i++) {
+	    try {
+		if (listeners[i] != null) {
+		    listeners[i].close();
+		}
+	    } catch (IOException e) {}
+	}
+    }
+
+    /**
+     * Loops, accepting socket connections from one listening socket and
+     * handing each to the execution layer.  Runs on the server thread,
+     * and on each extra acceptor thread.
+     *
+     * @param	listen
+     *		The listening socket to accept from.
+     *
+     * @throws	IOException
+     *		if the listening socket fails or is closed.
+     */
+    protected void
+    accept(ServerSocket listen)
+	throws IOException
+    {
+	listen.setSoTimeout(0);
+	while (true) 
+	{
+	    /*
+	     * Blocks until we have a connection on the socket.
+	     */
+	    Socket sock = listen.accept();
+		
+	    String threadName = sock.getInetAddress().getHostAddress();
+		
+	    log(LOG_INFORMATIONAL, threadName, "new connection");
+
+	    if (allowed(sock) == false) 
+	    {
+		log(LOG_DIAGNOSTIC, sock.getInetAddress(), "rejected request");
+		sock.close();
+		continue;
+	    }
+	    if (throttled(sock)) {
+		continue;
+	    }
+
+	    if (executor != null) {
+		try {
+		    executor.execute(new Connection(this, sock));
+		} catch (RejectedExecutionException e) {
+		    rejectCount.increment();
+		    log(LOG_WARNING, sock, "Server busy, refusing: "
+			    + rejectCount.get() + " refused, "
+			    + getActiveWorkers() + " active, "
+			    + getQueueDepth() + " queued");
+		    reject(sock);
+		    continue;
+		}
+		acceptCount++;
+		metrics.accepts.increment();
+		continue;
+	    }
+
+	    // A pseudo-busy loop!!!
+
+	    boolean warn=false;
+		
+	    while (Thread.activeCount() > maxThreads) 
+	    {
+		if (!warn) 
+		{
+		    log(LOG_WARNING, sock, 
+			    "Too many threads: " + acceptCount);
+		}
+		Thread.yield();
+		warn = true;
+	    }
+	
+	    new Thread(group, new Connection(this, sock),
+		    threadName + "-" + acceptCount).start();
+	    acceptCount++;
+	    metrics.accepts.increment();
+	}
+    }
+
+    /**
+     * Checks an accepted socket against the <code>restrict</code> list.
+     *
+     * @param	sock
+     *		The newly accepted socket.
+     *
+     * @return	<code>true</code> if the client may connect.
+     */
+    protected boolean
+    allowed(Socket sock)
+    {
+	if (restrict == null) {
+	    return true;
+	}
+	InetAddress addr = sock.getInetAddress();
+	for (int i = 0; i < restrict.length; i++) {
+	    if (restrict[i].equals(addr)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Replaces the listening socket, if needed, with one created from a
+     * <code>ServerSocketChannel</code> and bound to the same address.
+     * Sockets accepted from it have a channel, so they can be used with
+     * a <code>Selector</code>.  The <code>listenQueue</code> property
+     * gives the listen queue size of the new socket.
+     * <p>
+     * Only a plain <code>ServerSocket</code> is replaced: an SSL socket,
+     * or any other subclass, would lose what it does.
+     *
+     * @throws	IOException
+     *		if the listening socket is not a plain one, or the new
+     *		socket could not be bound.
+     */
+    protected void
+    useChannel()
+	throws IOException
+    {
+	if (listen.getChannel() != null) {
+	    return;
+	}
+	if (listen.getClass() != ServerSocket.class) {
+	    throw new IOException("won't replace a "
+		    + listen.getClass().getName());
+	}
+	SocketAddress addr = listen.getLocalSocketAddress();
+	listen.close();
+	ServerSocketChannel channel = ServerSocketChannel.open();
+	channel.socket().setReuseAddress(true);
+	channel.socket().bind(addr, listenBacklog());
+	listen = channel.socket();
+    }
+
+    /**
+     * Returns the listen queue size for sockets the server opens itself,
+     * from the <code>listenQueue</code> property.
+     */
+    int
+    listenBacklog()
+    {
+	try {
+	    return Integer.decode(props.getProperty("listenQueue")).intValue();
+	} catch (Exception e) {
+	    return 50;
+	}
+    }
+
+    /**
+     * Replaces the listening socket with one socket per acceptor, all
+     * bound to its address with <code>SO_REUSEPORT</code>.  The new
+     * sockets have channels if the old one did.  Nothing is changed if
+     * the option can't be set; if a new socket can't be bound, all of
+     * them are closed, along with the old one.
+     *
+     * @throws	IOException
+     *		if <code>SO_REUSEPORT</code> is not supported, or a
+     *		socket could not be bound.
+     */
+    protected void
+    openShards()
+	throws IOException
+    {
+	boolean channel = (listen.getChannel() != null);
+	ServerSocket probe = newListener(channel);
+	try {
+	    setReusePort(probe);
+	} finally {
+	    probe.close();
+	}
+
+	SocketAddress addr = listen.getLocalSocketAddress();
+	int backlog = listenBacklog();
+	listen.close();
+	try {
+	    for (int i = 0; i < listeners.length; i++) {
+		listeners[i] = newListener(channel);
+		listeners[i].setReuseAddress(true);
+		setReusePort(listeners[i]);
+		listeners[i].bind(addr, backlog);
+	    }
+	} catch (IOException e) {
+	    closeListeners();
+	    throw e;
+	}
+	listen = listeners[0];
+    }
+
+    private static ServerSocket
+    newListener(boolean channel)
+	throws IOException
+    {
+	return channel ? ServerSocketChannel.open().socket()
+		: new ServerSocket();
+    }
+
+    /**
+     * Sets <code>SO_REUSEPORT</code> on an unbound socket.  The option
+     * is looked up by reflection, as it is only known to newer VMs.
+     */
+    private static void
+    setReusePort(ServerSocket sock)
+	throws IOException
+    {
+	try {
+	    Class options = Class.forName("java.net.StandardSocketOptions");
+	    Object option = options.getField("SO_REUSEPORT").get(null);
+	    Method setOption = ServerSocket.class.getMethod("setOption",
+		    new Class[] {Class.forName("java.net.SocketOption"),
+		    Object.class});
+	    setOption.invoke(sock, new Object[] {option, Boolean.TRUE});
+	} catch (InvocationTargetException e) {
+	    throw new IOException("SO_REUSEPORT: " + e.getTargetException());
+	} catch (Exception e) {
+	    throw new IOException("SO_REUSEPORT not known to this VM");
+	}
+    }
+
+    /**
+     * Creates the bounded worker pool used when <code>poolMax</code> is set.
+     * Workers are started in this server's thread group.
+     *
+     * @return	The new pool.
+     */
+    protected Executor
+    newPool()
+    {
+	ThreadFactory factory = new ThreadFactory() {
+	    int count = 0;
+
+	    public synchronized Thread
+	    newThread(Runnable r)
+	    {
+		return new Thread(group, r, prefix + "worker-" + count++);
+	    }
+	};
+	BlockingQueue queue = (poolQueue > 0)
+		? (BlockingQueue) new ArrayBlockingQueue(poolQueue)
+		: (BlockingQueue) new SynchronousQueue();
+	int core = (poolCore < 0) ? poolMax : Math.min(poolCore, poolMax);
+	return new ThreadPoolExecutor(core, poolMax,
+		timeout, TimeUnit.MILLISECONDS, queue, factory,
+		new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Answers a request refused by the concurrency limiter with a
+     * <code>503</code>.  Unlike {@link #reject}, the connection is kept
+     * alive, since the request has been read in full.
+     *
+     * @param	request
+     *		The refused request.
+     *
+     * @throws	IOException
+     *		if the response could not be sent.
+     */
+    protected void
+    shed(Request request)
+	throws IOException
+    {
+	shedCount.increment();
+	log(LOG_INFORMATIONAL, request.url, "shed: " + limiter);
+	request.addHeader("Retry-After", Integer.toString(retryAfter));
+	request.sendResponse("Server busy, try again later\n", "text/plain",
+		503);
+    }
+
+    /**
+     * Refuses a connection the server is too busy to handle.  A minimal
+     * <code>503</code> response with a <code>Retry-After</code> header
+     * is written, and the socket is closed without reading the request.
+     *
+     * @param	sock
+     *		The socket to refuse.
+     */
+    protected void
+    reject(Socket sock)
+    {
+	metrics.refused.increment();
+	sendAndClose(sock, busyResponse());
+    }
+
+    /**
+     * Writes a canned response to a socket and closes it.
+     */
+    static void
+    sendAndClose(Socket sock, byte[] response)
+    {
+	try {
+	    OutputStream out = sock.getOutputStream();
+	    out.write(response);
+	    out.flush();
+	} catch (IOException e) {
+	} finally {
+	    try {
+		sock.close();
+	    } catch (IOException e) {}
+	}
+    }
+
+    /**
+     * Refuses a newly accepted connection, with a minimal
+     * <code>429</code> response, if its client has used up its
+     * <code>rateLimit</code>.  The check takes no token, so a client
+     * within its limit is charged only for its requests.
+     *
+     * @param	sock
+     *		The accepted socket.
+     *
+     * @return	<code>true</code> if the socket was refused and closed.
+     */
+    protected boolean
+    throttled(Socket sock)
+    {
+	if (clientLimiter == null) {
+	    return false;
+	}
+	String addr = sock.getInetAddress().getHostAddress();
+	if (clientLimiter.isLimited(addr) == false) {
+	    return false;
+	}
+	throttleCount.increment();
+	metrics.refused.increment();
+	log(LOG_DIAGNOSTIC, addr, "rate limited connection");
+	sendAndClose(sock, ("HTTP/1.0 429 Too Many Requests\r\n"
+		+ "Retry-After: " + Math.max(clientLimiter.waitSeconds(addr), 1)
+		+ "\r\nConnection: close\r\n"
+		+ "Content-Length: 0\r\n\r\n").getBytes());
+	return true;
+    }
+
+    /**
+     * Charges a request to its client's rate limits.  A request over
+     * a limit is answered with a <code>429</code>, and its connection is
+     * closed.
+     *
+     * @param	request
+     *		The request, whose headers have been read.
+     *
+     * @return	<code>true</code> if the request was refused.
+     *
+     * @throws	IOException
+     *		if the response could not be sent.
+     */
+    protected boolean
+    throttled(Request request)
+	throws IOException
+    {
+	if ((clientLimiter == null) && (prefixLimiters == null)) {
+	    return false;
+	}
+	String addr = request.sock.getInetAddress().getHostAddress();
+	RateLimiter bucket = null;
+	if ((clientLimiter != null) && !clientLimiter.tryAcquire(addr)) {
+	    bucket = clientLimiter;
+	} else if (prefixLimiters != null) {
+	    for (int i = 0; i < prefixLimiters.length; i++) {
+		if (request.url.startsWith(ratePrefixes[i])
+			&& !prefixLimiters[i].tryAcquire(addr)) {
+		    bucket = prefixLimiters[i];
+		    break;
+		}
+	    }
+	}
+	if (bucket == null) {
+	    return false;
+	}
+	throttleCount.increment();
+	log(LOG_DIAGNOSTIC, addr, "rate limited: " + request.url);
+	request.keepAlive = false;
+	request.addHeader("Retry-After",
+		Integer.toString(Math.max(bucket.waitSeconds(addr), 1)));
+	request.sendResponse("Too many requests\n", "text/plain", 429);
+	return true;
+    }
+
+    /**
+     * Returns the complete <code>503</code> response sent to a client
+     * that is refused because the server is too busy.
+     */
+    protected byte[]
+    busyResponse()
+    {
+	return ("HTTP/1.0 503 Service Unavailable\r\n"
+		+ "Retry-After: " + retryAfter + "\r\n"
+		+ "Connection: close\r\n"
+		+ "Content-Length: 0\r\n\r\n").getBytes();
+    }
+
+    /**
+     * Returns the number of accepted connections waiting for a worker.
+     * Always <code>0</code> when no pool is used.
+     */
+    public int
+    getQueueDepth()
+    {
+	if (executor instanceof ThreadPoolExecutor) {
+	    return ((ThreadPoolExecutor) executor).getQueue().size();
+	}
+	return 0;
+    }
+
+    /**
+     * Returns the number of threads currently serving connections.
+     */
+    public int
+    getActiveWorkers()
+    {
+	if (executor instanceof ThreadPoolExecutor) {
+	    return ((ThreadPoolExecutor) executor).getActiveCount();
+	}
+	if (executor instanceof VirtualThreadExecutor) {
+	    return ((VirtualThreadExecutor) executor).getActiveCount();
+	}
+	ThreadGroup g = group;
+	return (g == null) ? 0 : g.activeCount();
+    }
+
+    /**
+     * Stop the server.  Closing the listening sockets stops the accept
+     * loop; the requests in progress then get <code>drainTimeout</code>
+     * milliseconds to finish before they are killed.
      */
     public void
     close()
     {
 	try {
-	    this.interrupt();
+	    closeListeners();
 	    this.join();
 	} catch (Exception e) {}
 
@@ -0,0 +1,168 @@
+package sunlabs.brazil.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on its own virtual thread, when the VM provides them.
+ * This suits the blocking {@link Connection} code: a connection waiting
+ * for its next keep-alive request no longer ties up a platform thread,
+ * so a server can hold many more mostly-idle sockets.
+ * <p>
+ * The number of tasks running at once is bounded by a semaphore rather
+ * than by counting threads.  A task submitted when no permit is left is
+ * rejected, which causes the {@link Server} to refuse the connection with
+ * a <code>503</code>.
+ * <p>
+ * Virtual threads are looked up by reflection so this class still loads
+ * on older VMs; use {@link #isAvailable} before creating one.
+ *
+ * @see	Server#virtualThreads
+ */
+class VirtualThreadExecutor
+    extends AbstractExecutorService
+{
+    /**
+     * <code>Thread.startVirtualThread(Runnable)</code>, or
+     * <code>null</code> if this VM has no virtual threads.
+     */
+    private static Method startVirtualThread;
+
+    static {
+	try {
+	    startVirtualThread = Thread.class.getMethod("startVirtualThread",
+		    new Class[] {Runnable.class});
+	} catch (Exception e) {}
+    }
+
+    private int limit;
+    private Semaphore permits;
+    private HashSet running = new HashSet();
+    private boolean shutdown = false;
+
+    /**
+     * Returns <code>true</code> if this VM can start virtual threads.
+     */
+    static boolean
+    isAvailable()
+    {
+	return startVirtualThread != null;
+    }
+
+    /**
+     * Creates an executor that runs at most <code>limit</code> tasks
+     * at once.
+     */
+    VirtualThreadExecutor(int limit)
+    {
+	this.limit = limit;
+	permits = new Semaphore(limit);
+    }
+
+    /**
+     * Returns the number of tasks currently running.
+     */
+    int
+    getActiveCount()
+    {
+	return limit - permits.availablePermits();
+    }
+
+    public void
+    execute(final Runnable task)
+    {
+	if (shutdown) {
+	    throw new RejectedExecutionException("shut down");
+	}
+	if (permits.tryAcquire() == false) {
+	    throw new RejectedExecutionException("concurrency limit reached");
+	}
+	Runnable wrapper = new Runnable() {
+	    public void
+	    run()
+	    {
+		Thread self = Thread.currentThread();
+		synchronized (running) {
+		    running.add(self);
+		}
+		try {
+		    task.run();
+		} finally {
+		    synchronized (running) {
+			running.remove(self);
+			running.notifyAll();
+		    }
+		    permits.release();
+		}
+	    }
+	};
+	try {
+	    startVirtualThread.invoke(null, new Object[] {wrapper});
+	} catch (Exception e) {
+	    permits.release();
+	    throw new RejectedExecutionException(e.toString());
+	}
+    }
+
+    public void
+    shutdown()
+    {
+	shutdown = true;
+    }
+
+    /**
+     * Stops accepting tasks and interrupts the running ones.
+     *
+     * @return	An empty list; tasks are never queued.
+     */
+    public List
+    shutdownNow()
+    {
+	shutdown = true;
+	synchronized (running) {
+	    Iterator it = running.iterator();
+	    while (it.hasNext()) {
+		((Thread) it.next()).interrupt();
+	    }
+	}
+	return new ArrayList();
+    }
+
+    public boolean
+    isShutdown()
+    {
+	return shutdown;
+    }
+
+    public boolean
+    isTerminated()
+    {
+	synchronized (running) {
+	    return shutdown && running.isEmpty();
+	}
+    }
+
+    public boolean
+    awaitTermination(long timeout, TimeUnit unit)
+	throws InterruptedException
+    {
+	long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+	synchronized (running) {
+	    while (!isTerminated()) {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0) {
+		    return false;
+		}
+		running.wait(left);
+	    }
+	}
+	return true;
+    }
+}
@@ -0,0 +1,73 @@
+package sunlabs.brazil.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending.  The
+ * count is spread over several cells, each on its own cache line, and a
+ * thread always adds to the cell picked by its id.  Reading the count
+ * adds up the cells, so it is slower than adding and, while other
+ * threads are adding, only a snapshot.
+ */
+public class Counter
+{
+    /**
+     * The number of <code>long</code>s between cells, so that no two
+     * share a 64-byte cache line.
+     */
+    private static final int PAD = 8;
+
+    private static final int STRIPES;
+
+    static {
+	int n = 1;
+	int want = Math.min(Runtime.getRuntime().availableProcessors() * 2, 64);
+	while (n < want) {
+	    n <<= 1;
+	}
+	STRIPES = n;
+    }
+
+    private AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    /**
+     * Adds to the count.
+     *
+     * @param	x
+     *		The amount to add.
+     */
+    public void
+    add(long x)
+    {
+	int i = (int) Thread.currentThread().getId() & (STRIPES - 1);
+	cells.getAndAdd(i * PAD, x);
+    }
+
+    /**
+     * Adds one to the count.
+     */
+    public void
+    increment()
+    {
+	add(1);
+    }
+
+    /**
+     * Returns the count.
+     */
+    public long
+    get()
+    {
+	long sum = 0;
+	for (int i = 0; i < STRIPES; i++) {
+	    sum += cells.get(i * PAD);
+	}
+	return sum;
+    }
+
+    public String
+    toString()
+    {
+	return Long.toString(get());
+    }
+}
@@ -0,0 +1,139 @@
+package sunlabs.brazil.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in microseconds, with log-linear buckets:
+ * each power of two is split into 16 equal buckets, so any recorded value
+ * is known to within about 6%, from one microsecond up to several days.
+ * <p>
+ * Recording a value only increments one <code>AtomicLong</code> cell
+ * and never allocates, so a histogram can stay on in production.
+ * Percentiles are computed from a snapshot of the cells.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final long MAX = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX) + 1;
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private Counter total = new Counter();
+    private Counter sum = new Counter();
+
+    /**
+     * Records one value.
+     *
+     * @param	micros
+     *		The latency, in microseconds.  Negative values count as 0.
+     */
+    public void
+    record(long micros)
+    {
+	if (micros < 0) {
+	    micros = 0;
+	}
+	counts.incrementAndGet(index(Math.min(micros, MAX)));
+	total.increment();
+	sum.add(micros);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long
+    getCount()
+    {
+	return total.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded, in microseconds.
+     */
+    public long
+    getMean()
+    {
+	long n = total.get();
+	return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Returns the value below which a fraction of the recorded values
+     * fall, in microseconds.
+     *
+     * @param	fraction
+     *		The percentile wanted, such as <code>0.99</code>.
+     *
+     * @return	The middle of the bucket holding that percentile, or
+     *		<code>0</code> if nothing has been recorded.
+     */
+    public long
+    getPercentile(double fraction)
+    {
+	long[] snap = new long[BUCKETS];
+	long n = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    snap[i] = counts.get(i);
+	    n += snap[i];
+	}
+	if (n == 0) {
+	    return 0;
+	}
+	long rank = (long) Math.ceil(fraction * n);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += snap[i];
+	    if (seen >= rank) {
+		return lowerBound(i) + (width(i) - 1) / 2;
+	    }
+	}
+	return MAX;
+    }
+
+    /**
+     * Returns a one-line summary of the histogram, in milliseconds.
+     */
+    public String
+    toString()
+    {
+	return "count=" + getCount()
+		+ " mean=" + millis(getMean())
+		+ " p50=" + millis(getPercentile(0.50))
+		+ " p99=" + millis(getPercentile(0.99))
+		+ " p999=" + millis(getPercentile(0.999));
+    }
+
+    private static String
+    millis(long micros)
+    {
+	return (micros / 1000) + "." + (micros % 1000 / 100) + "ms";
+    }
+
+    private static int
+    index(long v)
+    {
+	if (v < SUB) {
+	    return (int) v;
+	}
+	int exp = 63 - Long.numberOfLeadingZeros(v);
+	return (exp - SUB_BITS + 1) * SUB
+		+ (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    private static long
+    lowerBound(int i)
+    {
+	if (i < SUB) {
+	    return i;
+	}
+	int exp = i / SUB + SUB_BITS - 1;
+	return ((long) (SUB + i % SUB)) << (exp - SUB_BITS);
+    }
+
+    private static long
+    width(int i)
+    {
+	return (i < SUB) ? 1 : 1L << (i / SUB - 1);
+    }
+}
@@ -29,7 +29,7 @@ package sunlabs.brazil.util;
 
 import java.util.Dictionary;    
 import java.util.Enumeration;
-import java.util.Vector;
+import java.util.NoSuchElementException;
 
 /**
  * The <code>StringMap</code> class is a substitute for the Hashtable.
@@ -39,9 +39,17 @@ import java.util.Vector;
  * <li> Values may be <code>null</code>.
  * <li> Preserves the relative order of the data.  
  * <li> The same key may appear multiple times in a single map.
- * <li> This map is implemented via a Vector, and as such, as the number of
- *      keys increases, the time required to search will go up.
+ * <li> Keys are found through a hash of their lower-cased characters, so
+ *	the time required to search does not grow with the number of keys.
+ * <li> The map is not synchronized.
  * </ul>
+ * The entries are kept in insertion order in parallel arrays.  An
+ * open-addressed hash table, probed linearly, maps each distinct key to
+ * the index of its first occurrence.  The well-known headers
+ * {@link #HOST}, {@link #CONTENT_LENGTH}, {@link #CONNECTION},
+ * {@link #RANGE} and {@link #CONTENT_TYPE} also have slots of their own,
+ * so looking them up with these constants, or with the same string
+ * literals, costs a single comparison.
  *
  * @author	Colin Stevens (colin.stevens@sun.com)
  * @version	1.11, 00/03/29
@@ -49,8 +57,41 @@ import java.util.Vector;
 public class StringMap
     extends Dictionary
 {
-    Vector keys;
-    Vector values;
+    public static final String HOST = "Host";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONNECTION = "Connection";
+    public static final String RANGE = "Range";
+    public static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String[] KNOWN = {
+	HOST, CONTENT_LENGTH, CONNECTION, RANGE, CONTENT_TYPE
+    };
+
+    private static final int[] KNOWN_HASHES = new int[KNOWN.length];
+
+    static {
+	for (int i = 0; i < KNOWN.length; i++) {
+	    KNOWN_HASHES[i] = hash(KNOWN[i]);
+	}
+    }
+
+    String[] keys;
+    String[] values;
+    int[] hashes;
+    int size;
+
+    /**
+     * Maps a hash to one more than the index of the first occurrence of
+     * a key, or to 0 if the slot is empty.  Its length is a power of two,
+     * at least twice the number of entries.
+     */
+    private int[] table;
+
+    /**
+     * One more than the index of the first occurrence of each
+     * {@link #KNOWN} key, or 0.
+     */
+    private int[] known = new int[KNOWN.length];
 
     /**
      * Creates an empty StringMap.
@@ -58,8 +99,10 @@ public class StringMap
     public
     StringMap()
     {
-	keys = new Vector();
-	values = new Vector();
+	keys = new String[8];
+	values = new String[8];
+	hashes = new int[8];
+	table = new int[16];
     }
 
     /**
@@ -75,7 +118,7 @@ public class StringMap
     public int
     size()
     {
-	return keys.size();
+	return size;
     }
 
     /**
@@ -89,7 +132,7 @@ public class StringMap
     public boolean
     isEmpty()
     {
-	return keys.isEmpty();
+	return size == 0;
     }
 
     /**
@@ -129,7 +172,7 @@ public class StringMap
     public Enumeration
     keys()
     {
-	return keys.elements();
+	return new Elements(keys);
     }
 
     /**
@@ -145,7 +188,7 @@ public class StringMap
     public Enumeration
     elements()
     {
-	return values.elements();
+	return new Elements(values);
     }
 
     /**
@@ -168,7 +211,8 @@ public class StringMap
     getKey(int index)
 	throws IndexOutOfBoundsException
     {
-	return (String) keys.elementAt(index);
+	check(index);
+	return keys[index];
     }
 
     /**
@@ -191,7 +235,8 @@ public class StringMap
     get(int index)
 	throws IndexOutOfBoundsException
     {
-	return (String) values.elementAt(index);
+	check(index);
+	return values[index];
     }
 
     /**
@@ -217,7 +262,7 @@ public class StringMap
     {
 	int i = indexOf(key);
 	if (i >= 0) {
-	    return (String) values.elementAt(i);
+	    return values[i];
 	} else {
 	    return null;
 	}
@@ -261,7 +306,8 @@ public class StringMap
     public void
     put(int index, String value)
     {
-	values.setElementAt(value, index);
+	check(index);
+	values[index] = value;
     }
 
     /**
@@ -291,10 +337,9 @@ public class StringMap
     {
 	int i = indexOf(key);
 	if (i < 0) {
-	    keys.addElement(key);
-	    values.addElement(value);
+	    append(key, value);
 	} else {
-	    values.setElementAt(value, i);
+	    values[i] = value;
 	}
     }
 
@@ -331,11 +376,10 @@ public class StringMap
 	int i = indexOf(skey);
 	if (i < 0) {
 	    prior = null;
-	    keys.addElement(skey);
-	    values.addElement(svalue);
+	    append(skey, svalue);
 	} else {
-	    prior = values.elementAt(i);
-	    values.setElementAt(svalue, i);
+	    prior = values[i];
+	    values[i] = svalue;
 	}
 	return prior;
     }
@@ -364,8 +408,11 @@ public class StringMap
     public void
     add(String key, String value)
     {
-	keys.addElement(key);
-	values.addElement(value);
+	if (indexOf(key) >= 0) {
+	    store(key, value, hash(key));
+	} else {
+	    append(key, value);
+	}
     }
 
     /**
@@ -389,11 +436,28 @@ public class StringMap
 	}
     }
 
+    /**
+     * Removes the key and value at the specified index.  The keys after
+     * it move down by one.
+     *
+     * @param	i
+     *		The index of the key.
+     *
+     * @throws	IndexOutOfBoundsException
+     *		if the index is out of the allowed range.
+     */
     public void
     remove(int i)
     {
-	keys.removeElementAt(i);
-	values.removeElementAt(i);
+	check(i);
+	int n = size - i - 1;
+	System.arraycopy(keys, i + 1, keys, i, n);
+	System.arraycopy(values, i + 1, values, i, n);
+	System.arraycopy(hashes, i + 1, hashes, i, n);
+	size--;
+	keys[size] = null;
+	values[size] = null;
+	rehash(table.length);
     }
 
     /**
@@ -416,7 +480,7 @@ public class StringMap
     {
 	int i = indexOf((String) key);
 	if (i >= 0) {
-	    Object prior = values.elementAt(i);
+	    Object prior = values[i];
 	    remove(i);
 	    return prior;
 	}
@@ -429,23 +493,198 @@ public class StringMap
     public void
     clear()
     {
-	keys.setSize(0);
-	values.setSize(0);
+	for (int i = 0; i < size; i++) {
+	    keys[i] = null;
+	    values[i] = null;
+	}
+	size = 0;
+	for (int i = 0; i < table.length; i++) {
+	    table[i] = 0;
+	}
+	for (int i = 0; i < known.length; i++) {
+	    known[i] = 0;
+	}
     }
 
     private int
     indexOf(String key)
     {
-	int length = keys.size();
-	for (int i = 0; i < length; i++) {
-	    String got = (String) keys.elementAt(i);
-	    if (key.equalsIgnoreCase(got)) {
+	int k = knownSlot(key);
+	if (k >= 0) {
+	    return known[k] - 1;
+	}
+	int h = hash(key);
+	int mask = table.length - 1;
+	for (int i = h & mask; table[i] != 0; i = (i + 1) & mask) {
+	    int j = table[i] - 1;
+	    if ((hashes[j] == h) && key.equalsIgnoreCase(keys[j])) {
+		return j;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Adds a key that is not yet in the map.
+     */
+    private void
+    append(String key, String value)
+    {
+	int h = hash(key);
+	int i = store(key, value, h);
+	if (size * 2 > table.length) {
+	    rehash(table.length * 2);
+	} else {
+	    index(i, h);
+	}
+    }
+
+    /**
+     * Adds an entry at the end of the arrays, without indexing it.
+     */
+    private int
+    store(String key, String value, int h)
+    {
+	if (size == keys.length) {
+	    String[] k = new String[size * 2];
+	    String[] v = new String[size * 2];
+	    int[] x = new int[size * 2];
+	    System.arraycopy(keys, 0, k, 0, size);
+	    System.arraycopy(values, 0, v, 0, size);
+	    System.arraycopy(hashes, 0, x, 0, size);
+	    keys = k;
+	    values = v;
+	    hashes = x;
+	}
+	keys[size] = key;
+	values[size] = value;
+	hashes[size] = h;
+	return size++;
+    }
+
+    /**
+     * Makes the entry at an index the one found for its key, unless an
+     * earlier entry already has that key.
+     */
+    private void
+    index(int i, int h)
+    {
+	int mask = table.length - 1;
+	int slot = h & mask;
+	for (; table[slot] != 0; slot = (slot + 1) & mask) {
+	    int j = table[slot] - 1;
+	    if ((hashes[j] == h) && keys[i].equalsIgnoreCase(keys[j])) {
+		return;
+	    }
+	}
+	table[slot] = i + 1;
+	for (int k = 0; k < KNOWN.length; k++) {
+	    if ((h == KNOWN_HASHES[k]) && KNOWN[k].equalsIgnoreCase(keys[i])) {
+		known[k] = i + 1;
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Rebuilds the hash table, after a removal has moved the entries or
+     * when it gets too full.
+     */
+    private void
+    rehash(int length)
+    {
+	if (length == table.length) {
+	    for (int i = 0; i < length; i++) {
+		table[i] = 0;
+	    }
+	} else {
+	    table = new int[length];
+	}
+	for (int i = 0; i < known.length; i++) {
+	    known[i] = 0;
+	}
+	for (int i = 0; i < size; i++) {
+	    index(i, hashes[i]);
+	}
+    }
+
+    private void
+    check(int index)
+    {
+	if ((index < 0) || (index >= size)) {
+	    throw new ArrayIndexOutOfBoundsException(index);
+	}
+    }
+
+    /**
+     * Returns the slot of a well-known key, if it is one of the
+     * {@link #KNOWN} strings itself.
+     */
+    private static int
+    knownSlot(String key)
+    {
+	for (int i = 0; i < KNOWN.length; i++) {
+	    if (key == KNOWN[i]) {
 		return i;
 	    }
 	}
 	return -1;
     }
 
+    /**
+     * Hashes a key as if it were lower case, so that keys equal but for
+     * case have the same hash.  ASCII letters, which is all HTTP header
+     * names use, are folded without a table lookup.
+     */
+    static int
+    hash(String key)
+    {
+	int h = 0;
+	int length = key.length();
+	for (int i = 0; i < length; i++) {
+	    char ch = key.charAt(i);
+	    if ((ch >= 'A') && (ch <= 'Z')) {
+		ch += 'a' - 'A';
+	    } else if (ch >= 0x80) {
+		ch = Character.toLowerCase(Character.toUpperCase(ch));
+	    }
+	    h = 31 * h + ch;
+	}
+	return h ^ (h >>> 16);
+    }
+
+    /**
+     * Enumerates a snapshot of the keys or values.
+     */
+    private class Elements
+	implements Enumeration
+    {
+	String[] array;
+	int length;
+	int i = 0;
+
+	Elements(String[] array)
+	{
+	    this.array = array;
+	    this.length = size;
+	}
+
+	public boolean
+	hasMoreElements()
+	{
+	    return i < length;
+	}
+
+	public Object
+	nextElement()
+	{
+	    if (i >= length) {
+		throw new NoSuchElementException();
+	    }
+	    return array[i++];
+	}
+    }
+
     /**
      * Returns a string representation of this <code>StringMap</code> in the
      * form of a set of entries, enclosed in braces and separated by the
@@ -461,11 +700,10 @@ public class StringMap
 
 	sb.append('{');
 
-	int length = keys.size();
-	for (int i = 0; i < length; i++) {
-	    sb.append(getKey(i));
+	for (int i = 0; i < size; i++) {
+	    sb.append(keys[i]);
 	    sb.append('=');
-	    sb.append(get(i));
+	    sb.append(values[i]);
 	    sb.append(", ");
 	}
 	if (sb.length() > 1) {
@@ -0,0 +1,311 @@
+package sunlabs.brazil.util.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An input stream that reads the body of one HTTP message, and no more,
+ * from the stream the message arrived on.  The body is either a fixed
+ * number of bytes, from a <code>Content-Length</code> header, or in the
+ * chunked encoding of <code>Transfer-Encoding: chunked</code>, which is
+ * decoded.  Any trailer after the last chunk is read and discarded.
+ * <p>
+ * The end of the body reads as the end of the stream, and the bytes
+ * after it, such as a pipelined request, are left in the underlying
+ * stream.  Closing this stream does not close the underlying one.
+ * <p>
+ * If the client is waiting for a <code>100 Continue</code> before it
+ * sends the body, the interim response is only sent when the body is
+ * first read, so a body that is never read is never uploaded.
+ */
+public class BodyInputStream
+    extends InputStream
+{
+    /**
+     * The longest chunk-size or trailer line accepted.
+     */
+    private static final int MAX_LINE = 1024;
+
+    private static final byte[] CONTINUE =
+	    "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    private HttpInputStream in;
+    private boolean chunked;
+
+    /**
+     * The bytes left in the body, or in the current chunk.
+     */
+    private long remaining;
+
+    private boolean eof;
+
+    /**
+     * Where to send the <code>100 Continue</code>, until it is sent.
+     */
+    private OutputStream expect;
+
+    /**
+     * Creates a stream over a body of a known length.
+     *
+     * @param	in
+     *		The stream the body is read from.
+     * @param	length
+     *		The length of the body, in bytes.
+     */
+    public
+    BodyInputStream(HttpInputStream in, long length)
+    {
+	this.in = in;
+	this.remaining = length;
+	this.eof = (length <= 0);
+    }
+
+    /**
+     * Creates a stream over a chunked body.
+     *
+     * @param	in
+     *		The stream the body is read from.
+     */
+    public
+    BodyInputStream(HttpInputStream in)
+    {
+	this.in = in;
+	this.chunked = true;
+    }
+
+    /**
+     * Returns <code>true</code> if the body is chunked.
+     */
+    public boolean
+    isChunked()
+    {
+	return chunked;
+    }
+
+    /**
+     * Asks for a <code>100 Continue</code> to be sent before the body is
+     * first read, unless the client has started sending it anyway.
+     *
+     * @param	out
+     *		The stream to the client, or <code>null</code> to send
+     *		nothing after all.
+     */
+    public void
+    setContinue(OutputStream out)
+    {
+	expect = eof ? null : out;
+    }
+
+    /**
+     * Returns <code>true</code> if the client is still waiting for a
+     * <code>100 Continue</code>, so none of the body has been sent.
+     */
+    public boolean
+    isContinuePending()
+    {
+	return expect != null;
+    }
+
+    /**
+     * Returns <code>true</code> once the whole body has been read.
+     */
+    public boolean
+    isFinished()
+    {
+	return eof;
+    }
+
+    public int
+    read()
+	throws IOException
+    {
+	if (ready() == false) {
+	    return -1;
+	}
+	int ch = in.read();
+	if (ch < 0) {
+	    throw new EOFException("body truncated");
+	}
+	consumed(1);
+	return ch;
+    }
+
+    public int
+    read(byte[] buf, int off, int len)
+	throws IOException
+    {
+	if (len == 0) {
+	    return 0;
+	}
+	if (ready() == false) {
+	    return -1;
+	}
+	int n = in.read(buf, off, (int) Math.min(len, remaining));
+	if (n < 0) {
+	    throw new EOFException("body truncated");
+	}
+	consumed(n);
+	return n;
+    }
+
+    public long
+    skip(long n)
+	throws IOException
+    {
+	if ((n <= 0) || (ready() == false)) {
+	    return 0;
+	}
+	long skipped = in.skip(Math.min(n, remaining));
+	if (skipped <= 0) {
+	    if (read() < 0) {
+		return 0;
+	    }
+	    return 1;
+	}
+	consumed(skipped);
+	return skipped;
+    }
+
+    public int
+    available()
+	throws IOException
+    {
+	if (eof) {
+	    return 0;
+	}
+	return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Skips the rest of the body, so the next message can be read from
+     * the underlying stream, unless that means reading more than a limit.
+     * Nothing is skipped if the client is waiting for a
+     * <code>100 Continue</code>.
+     *
+     * @param	limit
+     *		The most bytes to skip.
+     *
+     * @return	<code>true</code> if the end of the body was reached.
+     */
+    public boolean
+    drain(long limit)
+	throws IOException
+    {
+	if (expect != null) {
+	    return false;
+	}
+	while (eof == false) {
+	    if (limit <= 0) {
+		return false;
+	    }
+	    long n = skip(limit);
+	    if (n <= 0) {
+		break;
+	    }
+	    limit -= n;
+	}
+	return eof;
+    }
+
+    /**
+     * Does nothing to the underlying stream, which belongs to the
+     * connection.
+     */
+    public void
+    close()
+    {
+    }
+
+    /**
+     * Gets ready to read the next byte of the body, reading the size of
+     * the next chunk if the current one is done.
+     *
+     * @return	<code>false</code> at the end of the body.
+     */
+    private boolean
+    ready()
+	throws IOException
+    {
+	if (eof) {
+	    return false;
+	}
+	if (expect != null) {
+	    if (in.available() == 0) {
+		expect.write(CONTINUE);
+		expect.flush();
+	    }
+	    expect = null;
+	}
+	if (chunked && (remaining == 0)) {
+	    remaining = chunkSize(line());
+	    if (remaining == 0) {
+		while (line().length() > 0) {
+		    /* trailer field, ignored */
+		}
+		eof = true;
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void
+    consumed(long n)
+	throws IOException
+    {
+	remaining -= n;
+	if (remaining == 0) {
+	    if (chunked) {
+		if (line().length() != 0) {
+		    throw new IOException("bad chunk end");
+		}
+	    } else {
+		eof = true;
+	    }
+	}
+    }
+
+    private String
+    line()
+	throws IOException
+    {
+	String line = in.readLine(MAX_LINE);
+	if (line == null) {
+	    throw new EOFException("body truncated");
+	}
+	return line;
+    }
+
+    /**
+     * Parses the hex size at the start of a chunk-size line, ignoring any
+     * chunk extensions after it.
+     */
+    private static long
+    chunkSize(String line)
+	throws IOException
+    {
+	long size = 0;
+	int digits = 0;
+	int length = line.length();
+	for (int i = 0; i < length; i++) {
+	    int digit = Character.digit(line.charAt(i), 16);
+	    if (digit < 0) {
+		char ch = line.charAt(i);
+		if ((ch == ';') || (ch == ' ') || (ch == '\t')) {
+		    break;
+		}
+		throw new IOException("bad chunk size: " + line);
+	    }
+	    if (++digits > 15) {
+		throw new IOException("chunk too large: " + line);
+	    }
+	    size = size * 16 + digit;
+	}
+	if (digits == 0) {
+	    throw new IOException("bad chunk size: " + line);
+	}
+	return size;
+    }
+}
@@ -0,0 +1,228 @@
+package sunlabs.brazil.util.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes the body of an HTTP message in the chunked
+ * encoding of <code>Transfer-Encoding: chunked</code>, for a body whose
+ * length isn't known when the headers are sent.
+ * <p>
+ * Small writes are gathered into chunks of a target size, and each chunk
+ * goes to the underlying stream in a single write, its size line and
+ * line break included.  A write at least as large as a chunk, with
+ * nothing gathered, is sent as a chunk of its own without being copied.
+ * <p>
+ * Nothing is flushed unless asked: a full chunk is passed on to the
+ * underlying stream, which sends it when its own buffer fills, and
+ * {@link #flush} sends the partial chunk and flushes the underlying
+ * stream, for a handler that wants the client to see what it has so
+ * far.  The end of the response is flushed by the server.
+ * <p>
+ * Closing this stream writes the last, empty, chunk but does not close
+ * the underlying stream, which belongs to the connection.
+ *
+ * @see	BodyInputStream
+ */
+public class ChunkedOutputStream
+    extends FilterOutputStream
+{
+    /**
+     * The default chunk size.
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The room kept before the data in {@link #buf} for the size line:
+     * up to eight hex digits and a line break.
+     */
+    private static final int HEAD_ROOM = 10;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST = {'0', '\r', '\n', '\r', '\n'};
+
+    /**
+     * The size lines of chunks whose size is a power of two, by the
+     * power, with their line break.
+     */
+    private static final byte[][] POWERS = new byte[31][];
+
+    static {
+	for (int i = 0; i < POWERS.length; i++) {
+	    POWERS[i] = (Integer.toHexString(1 << i) + "\r\n").getBytes();
+	}
+    }
+
+    /**
+     * The chunk being gathered, from <code>HEAD_ROOM</code>, with room
+     * after it for the line break ending it and the last chunk.
+     */
+    private byte[] buf;
+    private int count;
+    private int size;
+
+    /**
+     * The size line of a full chunk.
+     */
+    private byte[] full;
+
+    private byte[] line = new byte[HEAD_ROOM];
+    private byte[] one = new byte[1];
+    private boolean closed;
+
+    /**
+     * Creates a stream that writes chunks of the default size.
+     *
+     * @param	out
+     *		The stream to the client.
+     */
+    public
+    ChunkedOutputStream(OutputStream out)
+    {
+	this(out, CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a stream that writes chunks of a given size.
+     *
+     * @param	out
+     *		The stream to the client.
+     * @param	size
+     *		The size of the chunks sent, except for the last one and
+     *		the ones sent by <code>flush</code>.
+     */
+    public
+    ChunkedOutputStream(OutputStream out, int size)
+    {
+	super(out);
+	this.size = Math.max(size, 16);
+	buf = new byte[HEAD_ROOM + this.size + CRLF.length + LAST.length];
+	if ((this.size & (this.size - 1)) == 0) {
+	    int power = 0;
+	    while ((1 << power) != this.size) {
+		power++;
+	    }
+	    full = POWERS[power];
+	} else {
+	    int start = sizeLine(line, HEAD_ROOM, this.size);
+	    full = new byte[HEAD_ROOM - start];
+	    System.arraycopy(line, start, full, 0, full.length);
+	}
+    }
+
+    public void
+    write(int b)
+	throws IOException
+    {
+	one[0] = (byte) b;
+	write(one, 0, 1);
+    }
+
+    public void
+    write(byte[] b, int off, int len)
+	throws IOException
+    {
+	if (closed) {
+	    throw new IOException("stream closed");
+	}
+	if ((count == 0) && (len >= size)) {
+	    if (len == size) {
+		out.write(full);
+	    } else {
+		int start = sizeLine(line, HEAD_ROOM, len);
+		out.write(line, start, HEAD_ROOM - start);
+	    }
+	    out.write(b, off, len);
+	    out.write(CRLF);
+	    return;
+	}
+	while (len > 0) {
+	    int n = Math.min(len, size - count);
+	    System.arraycopy(b, off, buf, HEAD_ROOM + count, n);
+	    count += n;
+	    off += n;
+	    len -= n;
+	    if (count == size) {
+		writeChunk(false);
+	    }
+	}
+    }
+
+    /**
+     * Sends the chunk gathered so far, then flushes the underlying
+     * stream.
+     */
+    public void
+    flush()
+	throws IOException
+    {
+	if (count > 0) {
+	    writeChunk(false);
+	}
+	out.flush();
+    }
+
+    /**
+     * Writes the last chunk, ending the body, along with any data still
+     * gathered.  The underlying stream is neither flushed nor closed.
+     */
+    public void
+    close()
+	throws IOException
+    {
+	if (closed) {
+	    return;
+	}
+	closed = true;
+	if (count > 0) {
+	    writeChunk(true);
+	} else {
+	    out.write(LAST);
+	}
+    }
+
+    /**
+     * Writes the gathered chunk in one write, followed by the last chunk
+     * if <code>last</code> is set.
+     */
+    private void
+    writeChunk(boolean last)
+	throws IOException
+    {
+	int start = HEAD_ROOM;
+	if (count == size) {
+	    start -= full.length;
+	    System.arraycopy(full, 0, buf, start, full.length);
+	} else {
+	    start = sizeLine(buf, start, count);
+	}
+	int end = HEAD_ROOM + count;
+	buf[end++] = '\r';
+	buf[end++] = '\n';
+	if (last) {
+	    System.arraycopy(LAST, 0, buf, end, LAST.length);
+	    end += LAST.length;
+	}
+	count = 0;
+	out.write(buf, start, end - start);
+    }
+
+    /**
+     * Encodes the size line of a chunk so that it ends just before
+     * <code>end</code>.
+     *
+     * @return	Where the line starts.
+     */
+    private static int
+    sizeLine(byte[] dst, int end, int len)
+    {
+	dst[--end] = '\n';
+	dst[--end] = '\r';
+	do {
+	    dst[--end] = (byte) Character.forDigit(len & 0xf, 16);
+	    len >>>= 4;
+	} while (len > 0);
+	return end;
+    }
+}
@@ -0,0 +1,738 @@
+package sunlabs.brazil.util.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A buffered input stream that can parse the head of an HTTP request
+ * (the request line and the headers) in place.
+ * <p>
+ * {@link #readHead} reads until the blank line that ends the head is in
+ * the buffer, then makes a single pass over the bytes, recording where
+ * each token of the request line and each header name and value starts
+ * and ends.  No strings are made while parsing; they are made only when
+ * asked for, straight from the buffer.  The method, the protocol and the
+ * common header names come from tables of constants, so usually only
+ * the URL and the header values cost an allocation.
+ * <p>
+ * The head's bytes stay valid until the next read from this stream, so
+ * the parts of the head that are wanted should be fetched before the
+ * request body is read.  Bytes read past the head, such as the body or
+ * a pipelined request, are returned by the ordinary <code>read</code>
+ * methods.
+ * <p>
+ * A buffer can also be created with no underlying stream and filled
+ * from a non-blocking channel by its owner; reading past the bytes
+ * filled in then reads as end of stream.
+ */
+public class HttpBuffer
+    extends InputStream
+{
+    /**
+     * The largest request head accepted, in bytes.
+     */
+    public static int maxHead = 65536;
+
+    private static final String[] METHODS = {
+	"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"
+    };
+
+    private static final String[] PROTOCOLS = {
+	"HTTP/1.1", "HTTP/1.0"
+    };
+
+    private static final String[] NAMES = {
+	"Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language",
+	"Accept-Charset", "Connection", "Keep-Alive", "Content-Length",
+	"Content-Type", "Cookie", "Referer", "Cache-Control", "Pragma",
+	"If-Modified-Since", "If-None-Match", "Range", "Authorization",
+	"Transfer-Encoding", "Expect", "Upgrade", "Origin",
+	"Proxy-Connection", "X-Forwarded-For"
+    };
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private InputStream in;
+    private byte[] buf;
+    private int pos = 0;
+    private int count = 0;
+
+    private int headStart;
+    private int headEnd;
+    private int lineEnd;
+    private int[] tokens = new int[6];
+    private int tokenCount;
+    private boolean expectContinue;
+    private int[] fields = new int[64];
+    private int fieldCount;
+
+    /**
+     * Creates a buffer reading from the given stream.
+     *
+     * @param	in
+     *		The underlying input stream, or <code>null</code> if the
+     *		buffer is filled with {@link #readFrom}.
+     * @param	size
+     *		The initial size of the buffer.  It grows if a request
+     *		head does not fit.
+     */
+    public
+    HttpBuffer(InputStream in, int size)
+    {
+	this.in = in;
+	buf = new byte[Math.max(size, 64)];
+    }
+
+    /**
+     * Reads the head of the next request, skipping any blank lines before
+     * it.
+     *
+     * @return	<code>false</code> if the end of the stream was reached
+     *		before a complete head.
+     *
+     * @throws	IOException
+     *		if the stream could not be read, or the head is longer
+     *		than {@link #maxHead}.
+     */
+    public boolean
+    readHead()
+	throws IOException
+    {
+	while (true) {
+	    if ((pos == count) && (fill() == false)) {
+		return false;
+	    }
+	    if ((buf[pos] != '\r') && (buf[pos] != '\n')) {
+		break;
+	    }
+	    pos++;
+	}
+
+	int scanned = 0;
+	while (true) {
+	    int i = pos + scanned;
+	    int end = -1;
+	    for (; i < count; i++) {
+		if (buf[i] != '\n') {
+		    continue;
+		}
+		if (i + 1 >= count) {
+		    break;
+		}
+		if (buf[i + 1] == '\n') {
+		    end = i + 2;
+		    break;
+		}
+		if (buf[i + 1] == '\r') {
+		    if (i + 2 >= count) {
+			break;
+		    }
+		    if (buf[i + 2] == '\n') {
+			end = i + 3;
+			break;
+		    }
+		}
+	    }
+	    if (end >= 0) {
+		parse(pos, end);
+		pos = end;
+		return true;
+	    }
+	    scanned = i - pos;
+	    if (count - pos >= maxHead) {
+		throw new IOException("request head too large");
+	    }
+	    if (fill() == false) {
+		return false;
+	    }
+	}
+    }
+
+    /**
+     * Records the tokens of the request line and the header fields of
+     * the head between <code>start</code> and <code>end</code>.
+     */
+    private void
+    parse(int start, int end)
+    {
+	headStart = start;
+	headEnd = end;
+
+	int eol = start;
+	while (buf[eol] != '\n') {
+	    eol++;
+	}
+	lineEnd = trimEnd(start, eol);
+	tokenCount = 0;
+	int i = start;
+	while ((i < lineEnd) && (tokenCount < 3)) {
+	    while ((i < lineEnd) && isSpace(buf[i])) {
+		i++;
+	    }
+	    if (i == lineEnd) {
+		break;
+	    }
+	    tokens[tokenCount * 2] = i;
+	    while ((i < lineEnd) && !isSpace(buf[i])) {
+		i++;
+	    }
+	    tokens[tokenCount * 2 + 1] = i;
+	    tokenCount++;
+	}
+
+	fieldCount = 0;
+	i = eol + 1;
+	while (i < end) {
+	    eol = i;
+	    while (buf[eol] != '\n') {
+		eol++;
+	    }
+	    int last = trimEnd(i, eol);
+	    if (last > i) {
+		if (fieldCount * 4 == fields.length) {
+		    int[] tmp = new int[fields.length * 2];
+		    System.arraycopy(fields, 0, tmp, 0, fields.length);
+		    fields = tmp;
+		}
+		int f = fieldCount * 4;
+		if (isSpace(buf[i])) {
+		    fields[f] = -1;
+		    fields[f + 1] = -1;
+		    fields[f + 2] = trimStart(i, last);
+		    fields[f + 3] = last;
+		    fieldCount++;
+		} else {
+		    int colon = i;
+		    while ((colon < last) && (buf[colon] != ':')) {
+			colon++;
+		    }
+		    if (colon < last) {
+			fields[f] = i;
+			fields[f + 1] = trimEnd(i, colon);
+			fields[f + 2] = trimStart(colon + 1, last);
+			fields[f + 3] = last;
+			fieldCount++;
+		    }
+		}
+	    }
+	    i = eol + 1;
+	}
+    }
+
+    private static boolean
+    isSpace(byte b)
+    {
+	return (b <= ' ') && (b >= 0);
+    }
+
+    private int
+    trimStart(int from, int to)
+    {
+	while ((from < to) && isSpace(buf[from])) {
+	    from++;
+	}
+	return from;
+    }
+
+    private int
+    trimEnd(int from, int to)
+    {
+	while ((to > from) && isSpace(buf[to - 1])) {
+	    to--;
+	}
+	return to;
+    }
+
+    /**
+     * Returns the number of bytes in the last head read, not counting
+     * any blank lines skipped before it.
+     */
+    public int
+    getHeadLength()
+    {
+	return headEnd - headStart;
+    }
+
+    /**
+     * Returns the request line of the last head read.
+     */
+    public String
+    getRequestLine()
+    {
+	return string(headStart, lineEnd);
+    }
+
+    /**
+     * Returns the number of space-separated tokens found in the request
+     * line, up to three.
+     */
+    public int
+    getTokenCount()
+    {
+	return tokenCount;
+    }
+
+    /**
+     * Returns the first token of the request line, or <code>null</code>.
+     */
+    public String
+    getMethod()
+    {
+	return (tokenCount < 1) ? null : lookup(METHODS, tokens[0], tokens[1]);
+    }
+
+    /**
+     * Returns the URL in the request line, without the query string, or
+     * <code>null</code>.
+     */
+    public String
+    getPath()
+    {
+	if (tokenCount < 2) {
+	    return null;
+	}
+	return string(tokens[2], queryMark());
+    }
+
+    /**
+     * Returns the query string, following the first "?" of the URL, or
+     * an empty string if there is none.
+     */
+    public String
+    getQuery()
+    {
+	if (tokenCount < 2) {
+	    return null;
+	}
+	int mark = queryMark();
+	return (mark == tokens[3]) ? "" : string(mark + 1, tokens[3]);
+    }
+
+    private int
+    queryMark()
+    {
+	int i = tokens[2];
+	while ((i < tokens[3]) && (buf[i] != '?')) {
+	    i++;
+	}
+	return i;
+    }
+
+    /**
+     * Returns the third token of the request line, or <code>null</code>.
+     */
+    public String
+    getProtocol()
+    {
+	return (tokenCount < 3) ? null
+		: lookup(PROTOCOLS, tokens[4], tokens[5]);
+    }
+
+    /**
+     * Returns the number of header lines found in the head.  Continuation
+     * lines count as header lines of their own.
+     */
+    public int
+    getFieldCount()
+    {
+	return fieldCount;
+    }
+
+    /**
+     * Returns the name of a header line, or <code>null</code> if it
+     * continues the value of the header before it.
+     */
+    public String
+    getFieldName(int i)
+    {
+	int f = i * 4;
+	return (fields[f] < 0) ? null
+		: lookup(NAMES, fields[f], fields[f + 1]);
+    }
+
+    /**
+     * Returns the value of a header line.
+     */
+    public String
+    getFieldValue(int i)
+    {
+	return string(fields[i * 4 + 2], fields[i * 4 + 3]);
+    }
+
+    /**
+     * Adds the headers of the last head read to a <code>MimeHeaders</code>
+     * object.  A continuation line is joined to the value before it, as
+     * {@link MimeHeaders#read} does.
+     */
+    public void
+    copyHeaders(MimeHeaders headers)
+    {
+	for (int i = 0; i < fieldCount; i++) {
+	    String name = getFieldName(i);
+	    if (name != null) {
+		headers.add(name, getFieldValue(i));
+	    } else if (headers.size() > 0) {
+		int last = headers.size() - 1;
+		headers.put(last, headers.get(last) + "\r\n\t"
+			+ getFieldValue(i));
+	    }
+	}
+    }
+
+    /**
+     * Returns the string for the bytes between <code>from</code> and
+     * <code>to</code>, taken from the table if it holds the same bytes.
+     */
+    private String
+    lookup(String[] table, int from, int to)
+    {
+	int len = to - from;
+	for (int i = 0; i < table.length; i++) {
+	    String s = table[i];
+	    if (s.length() != len) {
+		continue;
+	    }
+	    int j = 0;
+	    while ((j < len) && (buf[from + j] == s.charAt(j))) {
+		j++;
+	    }
+	    if (j == len) {
+		return s;
+	    }
+	}
+	return string(from, to);
+    }
+
+    /**
+     * Treats each byte as an 8-bit character, as the rest of this package
+     * does.
+     */
+    private String
+    string(int from, int to)
+    {
+	return new String(buf, from, to - from, LATIN1);
+    }
+
+    /**
+     * Returns the length of the first complete request buffered: its
+     * head, after any blank lines, and a body of the size given by its
+     * <code>Content-Length</code> header, or all the chunks and trailer
+     * of a chunked body.  Nothing is consumed.
+     *
+     * @param	maxBody
+     *		A body longer than this is not waited for, so the request
+     *		can be refused as soon as it is known to be too large.
+     *
+     * @return	The length, <code>-1</code> if more bytes are needed, or
+     *		<code>Integer.MAX_VALUE</code> if the body is longer than
+     *		<code>maxBody</code>.
+     *
+     * @see	#expectsContinue
+     */
+    public int
+    requestLength(int maxBody)
+    {
+	int i = pos;
+	while ((i < count) && ((buf[i] == '\r') || (buf[i] == '\n'))) {
+	    i++;
+	}
+	boolean first = true;
+	boolean chunked = false;
+	boolean coded = false;
+	boolean expect = false;
+	int length = 0;
+	expectContinue = false;
+	while (true) {
+	    int eol = i;
+	    while ((eol < count) && (buf[eol] != '\n')) {
+		eol++;
+	    }
+	    if (eol == count) {
+		return -1;
+	    }
+	    int last = ((eol > i) && (buf[eol - 1] == '\r')) ? eol - 1 : eol;
+	    if (last == i) {
+		expectContinue = expect;
+		if (chunked) {
+		    return chunksLength(eol + 1, maxBody);
+		}
+		int size = eol + 1 - pos;
+		if (coded) {
+		    return size;
+		}
+		if (length > maxBody) {
+		    return Integer.MAX_VALUE;
+		}
+		return (count - pos >= size + length) ? size + length : -1;
+	    }
+	    if (first) {
+		/* request line */
+	    } else if (matches(i, last, "content-length:")) {
+		length = parseLength(i + 15, last, maxBody);
+	    } else if (matches(i, last, "transfer-encoding:")) {
+		int v = i + 18;
+		while ((v < last) && ((buf[v] == ' ') || (buf[v] == '\t'))) {
+		    v++;
+		}
+		chunked = matches(v, last, "chunked");
+		coded = !chunked;
+	    } else if (matches(i, last, "expect:")) {
+		int v = i + 7;
+		while ((v < last) && ((buf[v] == ' ') || (buf[v] == '\t'))) {
+		    v++;
+		}
+		expect = matches(v, last, "100-continue");
+	    }
+	    first = false;
+	    i = eol + 1;
+	}
+    }
+
+    /**
+     * Returns <code>true</code> if the last request whose head was found
+     * by {@link #requestLength} has "Expect: 100-continue", so its body
+     * will only be sent once the client is told to go ahead.
+     */
+    public boolean
+    expectsContinue()
+    {
+	return expectContinue;
+    }
+
+    /**
+     * Returns the length of the request whose chunked body starts at an
+     * offset, as for {@link #requestLength}.  A malformed body ends the
+     * scan, leaving the request to report it when it reads the body.
+     */
+    private int
+    chunksLength(int i, int maxBody)
+    {
+	long total = 0;
+	while (true) {
+	    int eol = i;
+	    while ((eol < count) && (buf[eol] != '\n')) {
+		eol++;
+	    }
+	    if (eol == count) {
+		return -1;
+	    }
+	    long size = 0;
+	    int digits = 0;
+	    for (int j = i; j < eol; j++) {
+		int digit = Character.digit((char) buf[j], 16);
+		if (digit < 0) {
+		    break;
+		}
+		size = size * 16 + digit;
+		if (++digits > 8) {
+		    return Integer.MAX_VALUE;
+		}
+	    }
+	    if (digits == 0) {
+		return eol + 1 - pos;
+	    }
+	    i = eol + 1;
+	    if (size == 0) {
+		break;
+	    }
+	    total += size;
+	    if (total > maxBody) {
+		return Integer.MAX_VALUE;
+	    }
+	    if (count - i < size) {
+		return -1;
+	    }
+	    i += (int) size;
+	    while ((i < count) && (buf[i] != '\n')) {
+		i++;
+	    }
+	    if (i == count) {
+		return -1;
+	    }
+	    i++;
+	}
+
+	/*
+	 * The trailer, ended by a blank line.
+	 */
+
+	while (true) {
+	    int eol = i;
+	    while ((eol < count) && (buf[eol] != '\n')) {
+		eol++;
+	    }
+	    if (eol == count) {
+		return -1;
+	    }
+	    if ((eol == i) || ((eol == i + 1) && (buf[i] == '\r'))) {
+		return eol + 1 - pos;
+	    }
+	    i = eol + 1;
+	}
+    }
+
+    private boolean
+    matches(int from, int to, String name)
+    {
+	int len = name.length();
+	if (to - from < len) {
+	    return false;
+	}
+	for (int i = 0; i < len; i++) {
+	    if (Character.toLowerCase((char) buf[from + i]) != name.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private int
+    parseLength(int from, int to, int max)
+    {
+	int value = 0;
+	for (int i = from; i < to; i++) {
+	    int ch = buf[i];
+	    if ((ch >= '0') && (ch <= '9')) {
+		value = value * 10 + (ch - '0');
+		if (value > max) {
+		    return Integer.MAX_VALUE;
+		}
+	    } else if ((ch != ' ') && (ch != '\t')) {
+		break;
+	    }
+	}
+	return value;
+    }
+
+    /**
+     * Reads whatever bytes a channel has ready into the buffer.
+     *
+     * @return	The number of bytes read, or <code>-1</code> at the end
+     *		of the stream.
+     */
+    public int
+    readFrom(ReadableByteChannel channel)
+	throws IOException
+    {
+	makeRoom();
+	int n = channel.read(ByteBuffer.wrap(buf, count, buf.length - count));
+	if (n > 0) {
+	    count += n;
+	}
+	return n;
+    }
+
+    /**
+     * Returns the number of bytes buffered and not yet read.
+     */
+    public int
+    buffered()
+    {
+	return count - pos;
+    }
+
+    /**
+     * Makes room after the bytes already buffered, by moving the unread
+     * bytes to the front of the buffer, or growing it.
+     */
+    private void
+    makeRoom()
+    {
+	if (pos == count) {
+	    pos = count = 0;
+	} else if (count == buf.length) {
+	    if (pos > 0) {
+		System.arraycopy(buf, pos, buf, 0, count - pos);
+		count -= pos;
+		pos = 0;
+	    } else {
+		byte[] tmp = new byte[buf.length * 2];
+		System.arraycopy(buf, 0, tmp, 0, count);
+		buf = tmp;
+	    }
+	}
+    }
+
+    /**
+     * Reads more bytes after the ones already buffered.
+     *
+     * @return	<code>false</code> at the end of the stream.
+     */
+    private boolean
+    fill()
+	throws IOException
+    {
+	if (in == null) {
+	    return false;
+	}
+	makeRoom();
+	int n = in.read(buf, count, buf.length - count);
+	if (n <= 0) {
+	    return false;
+	}
+	count += n;
+	return true;
+    }
+
+    public int
+    read()
+	throws IOException
+    {
+	if ((pos == count) && (fill() == false)) {
+	    return -1;
+	}
+	return buf[pos++] & 0xff;
+    }
+
+    public int
+    read(byte[] b, int off, int len)
+	throws IOException
+    {
+	if (len == 0) {
+	    return 0;
+	}
+	if (pos == count) {
+	    if ((in != null) && (len >= buf.length)) {
+		return in.read(b, off, len);
+	    }
+	    if (fill() == false) {
+		return -1;
+	    }
+	}
+	int n = Math.min(len, count - pos);
+	System.arraycopy(buf, pos, b, off, n);
+	pos += n;
+	return n;
+    }
+
+    public long
+    skip(long n)
+	throws IOException
+    {
+	if (pos == count) {
+	    return (in == null) ? 0 : in.skip(n);
+	}
+	int skipped = (int) Math.min(n, count - pos);
+	pos += skipped;
+	return skipped;
+    }
+
+    public int
+    available()
+	throws IOException
+    {
+	return (count - pos) + ((in == null) ? 0 : in.available());
+    }
+
+    public void
+    close()
+	throws IOException
+    {
+	if (in != null) {
+	    in.close();
+	}
+    }
+}
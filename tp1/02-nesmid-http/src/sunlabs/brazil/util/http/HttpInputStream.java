@@ -60,6 +60,12 @@ public class HttpInputStream
      */
     public static int defaultBufsize = 4096;
 
+    /**
+     * The number of bytes read from this stream.  It may be reset by the
+     * caller, for instance to count the bytes of each request.
+     */
+    public int bytesRead = 0;
+
     /**
      * Creates a new HttpInputStream that reads its input from the
      * specified input stream.
@@ -73,6 +79,37 @@ public class HttpInputStream
 	super(in);
     }
 
+    public int
+    read()
+	throws IOException
+    {
+	int ch = in.read();
+	if (ch >= 0) {
+	    bytesRead++;
+	}
+	return ch;
+    }
+
+    public int
+    read(byte[] buf, int off, int len)
+	throws IOException
+    {
+	int count = in.read(buf, off, len);
+	if (count > 0) {
+	    bytesRead += count;
+	}
+	return count;
+    }
+
+    public long
+    skip(long n)
+	throws IOException
+    {
+	long count = in.skip(n);
+	bytesRead += count;
+	return count;
+    }
+
     /**
      * Reads the next line of text from the input stream.
      * <p>
@@ -121,11 +158,12 @@ public class HttpInputStream
 	    int ch = read();
 	    if (ch == '\r') {
 		ch = read();
-		if (ch != '\n') {
+		if ((ch >= 0) && (ch != '\n')) {
 		    if ((in instanceof PushbackInputStream) == false) {
 			in = new PushbackInputStream(in);
 		    }
 		    ((PushbackInputStream) in).unread(ch);
+		    bytesRead--;
 		}
 		break;
 	    } else if (ch == '\n') {
@@ -267,6 +305,9 @@ public class HttpInputStream
      * Copies bytes from this input stream to the specified output stream
      * until the specified number of bytes are copied or the end of the
      * input stream is reached.
+     * <p>
+     * The output stream is not flushed; a buffered one sends what it
+     * holds as it fills, and the rest when the caller flushes it.
      *
      * @param	out
      *		The output stream to copy the data to.
@@ -309,7 +350,6 @@ public class HttpInputStream
 	    len -= count;
 	    try {
 		out.write(buf, 0, count);
-		out.flush();
 	    } catch (IOException e) {
 		break;
 	    }
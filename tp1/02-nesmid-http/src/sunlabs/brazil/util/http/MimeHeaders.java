@@ -114,6 +114,7 @@ public class MimeHeaders
     read(HttpInputStream in)
 	throws IOException
     {
+	StringBuffer value = null;
 	while (true) {
 	    String line = in.readLine();
 	    if ((line == null) || (line.length() == 0)) {
@@ -121,17 +122,25 @@ public class MimeHeaders
 	    }
 
 	    if (Character.isSpaceChar(line.charAt(0)) == false) {
+		if (value != null) {
+		    put(size() - 1, value.toString());
+		    value = null;
+		}
 		int index = line.indexOf(':');
 		if (index >= 0) {
 		    String key = line.substring(0, index).trim();
-		    String value = line.substring(index + 1).trim();
-		    add(key, value);
+		    add(key, line.substring(index + 1).trim());
 		}
 	    } else if (size() > 0) {
-		String value = get(size() - 1);
-		put(size() - 1, value + "\r\n\t" + line.trim());
+		if (value == null) {
+		    value = new StringBuffer(get(size() - 1));
+		}
+		value.append("\r\n\t").append(line.trim());
 	    }
 	}
+	if (value != null) {
+	    put(size() - 1, value.toString());
+	}
     }
 
     /**
@@ -0,0 +1,550 @@
+package sunlabs.brazil.util.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+/**
+ * A parser for <code>multipart/form-data</code> content, as uploaded by
+ * HTML forms with files.  It reads the content as a stream, one part at
+ * a time, so the whole upload is never in memory.
+ * <p>
+ * {@link #nextPart} returns each part in turn, with its headers.  The
+ * body of a part can be read as a stream from {@link Part#getInputStream},
+ * or {@link Part#buffer buffered}: kept in memory if it is small, or
+ * spilled to a temporary file if it is not.  Whatever of a part is left
+ * unread is skipped when the next part is asked for.
+ * <p>
+ * The boundary is searched for in a buffer of a fixed size, which only
+ * has to hold the boundary itself; bytes that cannot be the start of a
+ * boundary are handed out as soon as they are read.
+ * <p>
+ * {@link #close} deletes the temporary files made for the parts.
+ */
+public class MultipartParser
+{
+    /**
+     * The longest part header line accepted.
+     */
+    private static final int MAX_LINE = 8192;
+
+    private InputStream in;
+    private byte[] delimiter;
+    private byte[] buf;
+    private int pos;
+    private int count;
+    private boolean eof;
+
+    private Part current;
+    private boolean started;
+    private boolean done;
+    private Vector files = new Vector();
+
+    /**
+     * Creates a parser.
+     *
+     * @param	in
+     *		The content to parse.
+     * @param	boundary
+     *		The boundary, from the <code>Content-Type</code> header.
+     * @param	bufsize
+     *		The size of the buffer to read through.
+     */
+    public
+    MultipartParser(InputStream in, String boundary, int bufsize)
+    {
+	this.in = in;
+	delimiter = ("\r\n--" + boundary).getBytes();
+	buf = new byte[Math.max(bufsize, delimiter.length * 2 + 4)];
+
+	/*
+	 * The first boundary has no line break before it; pretend it does,
+	 * so all the boundaries can be found the same way.
+	 */
+
+	buf[0] = '\r';
+	buf[1] = '\n';
+	count = 2;
+    }
+
+    /**
+     * Returns the boundary given in a <code>Content-Type</code> header.
+     *
+     * @param	contentType
+     *		The value of the header.
+     *
+     * @return	The boundary, or <code>null</code> if the type is not
+     *		<code>multipart/form-data</code> or there is no boundary.
+     */
+    public static String
+    getBoundary(String contentType)
+    {
+	if ((contentType == null) || (contentType.regionMatches(true, 0,
+		"multipart/form-data", 0, 19) == false)) {
+	    return null;
+	}
+	String lower = contentType.toLowerCase();
+	int i = lower.indexOf("boundary=");
+	if (i < 0) {
+	    return null;
+	}
+	String boundary = contentType.substring(i + 9).trim();
+	if (boundary.startsWith("\"")) {
+	    int end = boundary.indexOf('"', 1);
+	    boundary = boundary.substring(1, (end < 0) ? boundary.length() : end);
+	} else {
+	    int end = boundary.indexOf(';');
+	    if (end >= 0) {
+		boundary = boundary.substring(0, end).trim();
+	    }
+	}
+	return (boundary.length() == 0) ? null : boundary;
+    }
+
+    /**
+     * Skips the rest of the current part, and reads the headers of the
+     * next one.
+     *
+     * @return	The next part, or <code>null</code> after the last one.
+     *
+     * @throws	IOException
+     *		if the content ends before the last boundary, or is not
+     *		well formed.
+     */
+    public Part
+    nextPart()
+	throws IOException
+    {
+	if (done) {
+	    return null;
+	}
+	if (current != null) {
+	    current.finish();
+	} else if (started == false) {
+	    started = true;
+	    byte[] tmp = new byte[buf.length];
+	    while (readPart(tmp, 0, tmp.length) >= 0) {
+		/* preamble, ignored */
+	    }
+	}
+
+	/*
+	 * At a boundary: it is either the last one, followed by "--", or
+	 * it ends its line.
+	 */
+
+	pos += delimiter.length;
+	if (ensure(2) && (buf[pos] == '-') && (buf[pos + 1] == '-')) {
+	    done = true;
+	    current = null;
+	    return null;
+	}
+	String line = readLine();
+	if (line.trim().length() != 0) {
+	    throw new IOException("bad multipart boundary");
+	}
+
+	MimeHeaders headers = new MimeHeaders();
+	while ((line = readLine()).length() > 0) {
+	    int index = line.indexOf(':');
+	    if (index > 0) {
+		headers.add(line.substring(0, index).trim(),
+			line.substring(index + 1).trim());
+	    }
+	}
+	current = new Part(headers);
+	return current;
+    }
+
+    /**
+     * Reads and buffers every part that is left.
+     *
+     * @param	threshold
+     *		Parts larger than this are spilled to temporary files.
+     * @param	dir
+     *		The directory for the files, or <code>null</code> for the
+     *		default temporary directory.
+     *
+     * @return	The parts, in order.
+     *
+     * @see	Part#buffer
+     */
+    public Vector
+    readAll(int threshold, File dir)
+	throws IOException
+    {
+	Vector parts = new Vector();
+	Part part;
+	while ((part = nextPart()) != null) {
+	    part.buffer(threshold, dir);
+	    parts.addElement(part);
+	}
+	return parts;
+    }
+
+    /**
+     * Deletes the temporary files made for the parts.
+     */
+    public void
+    close()
+    {
+	for (int i = 0; i < files.size(); i++) {
+	    ((File) files.elementAt(i)).delete();
+	}
+	files.removeAllElements();
+    }
+
+    /**
+     * Reads from the current part, stopping at the next boundary.
+     *
+     * @return	The number of bytes read, or <code>-1</code> at the
+     *		boundary, which is left at the start of the buffer.
+     */
+    private int
+    readPart(byte[] b, int off, int len)
+	throws IOException
+    {
+	ensure(delimiter.length);
+	int match = find();
+	int n;
+	if (match >= 0) {
+	    n = match - pos;
+	    if (n == 0) {
+		return -1;
+	    }
+	} else {
+	    if (eof) {
+		throw new EOFException("multipart content truncated");
+	    }
+
+	    /*
+	     * The last bytes may be the start of a boundary that has not
+	     * all arrived yet; keep them.
+	     */
+
+	    n = count - pos - (delimiter.length - 1);
+	}
+	n = Math.min(n, len);
+	System.arraycopy(buf, pos, b, off, n);
+	pos += n;
+	return n;
+    }
+
+    /**
+     * Returns the offset of the first boundary in the buffer, or
+     * <code>-1</code>.
+     */
+    private int
+    find()
+    {
+	int last = count - delimiter.length;
+	byte first = delimiter[0];
+	for (int i = pos; i <= last; i++) {
+	    if (buf[i] != first) {
+		continue;
+	    }
+	    int j = 1;
+	    while ((j < delimiter.length) && (buf[i + j] == delimiter[j])) {
+		j++;
+	    }
+	    if (j == delimiter.length) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Reads until at least <code>n</code> bytes are buffered, or the
+     * content ends.
+     *
+     * @return	<code>false</code> if the content ended first.
+     */
+    private boolean
+    ensure(int n)
+	throws IOException
+    {
+	if (count - pos >= n) {
+	    return true;
+	}
+	if (pos > 0) {
+	    System.arraycopy(buf, pos, buf, 0, count - pos);
+	    count -= pos;
+	    pos = 0;
+	}
+	while ((count < n) && (eof == false)) {
+	    int got = in.read(buf, count, buf.length - count);
+	    if (got < 0) {
+		eof = true;
+	    } else {
+		count += got;
+	    }
+	}
+	return count >= n;
+    }
+
+    private String
+    readLine()
+	throws IOException
+    {
+	StringBuffer sb = new StringBuffer();
+	while (true) {
+	    if (ensure(1) == false) {
+		throw new EOFException("multipart content truncated");
+	    }
+	    int ch = buf[pos++] & 0xff;
+	    if (ch == '\n') {
+		break;
+	    }
+	    if (sb.length() >= MAX_LINE) {
+		throw new IOException("multipart header too long");
+	    }
+	    sb.append((char) ch);
+	}
+	int length = sb.length();
+	if ((length > 0) && (sb.charAt(length - 1) == '\r')) {
+	    sb.setLength(length - 1);
+	}
+	return sb.toString();
+    }
+
+    /**
+     * One part of the content.
+     */
+    public class Part
+    {
+	/**
+	 * The headers of the part.
+	 */
+	public MimeHeaders headers;
+
+	private String name;
+	private String filename;
+	private boolean finished;
+	private long size;
+	private byte[] data;
+	private File file;
+
+	Part(MimeHeaders headers)
+	{
+	    this.headers = headers;
+	    String disposition = headers.get("Content-Disposition");
+	    if (disposition != null) {
+		name = param(disposition, "name");
+		filename = param(disposition, "filename");
+	    }
+	}
+
+	/**
+	 * Returns the name of the form field, from the
+	 * <code>Content-Disposition</code> header.
+	 */
+	public String
+	getName()
+	{
+	    return name;
+	}
+
+	/**
+	 * Returns the name of the uploaded file, or <code>null</code> if
+	 * the part is not a file.
+	 */
+	public String
+	getFilename()
+	{
+	    return filename;
+	}
+
+	/**
+	 * Returns the type of the part, which defaults to
+	 * <code>text/plain</code>.
+	 */
+	public String
+	getContentType()
+	{
+	    String type = headers.get("Content-Type");
+	    return (type == null) ? "text/plain" : type;
+	}
+
+	/**
+	 * Returns the body of the part.  Before it has been buffered, it
+	 * is read straight from the content, and is only valid until the
+	 * next part is asked for.
+	 */
+	public InputStream
+	getInputStream()
+	    throws IOException
+	{
+	    if (data != null) {
+		return new ByteArrayInputStream(data);
+	    } else if (file != null) {
+		return new FileInputStream(file);
+	    }
+	    return new InputStream() {
+		public int
+		read()
+		    throws IOException
+		{
+		    byte[] b = new byte[1];
+		    return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		public int
+		read(byte[] b, int off, int len)
+		    throws IOException
+		{
+		    if (finished || (current != Part.this)) {
+			return -1;
+		    }
+		    if (len == 0) {
+			return 0;
+		    }
+		    int n = readPart(b, off, len);
+		    if (n < 0) {
+			finished = true;
+		    } else {
+			size += n;
+		    }
+		    return n;
+		}
+	    };
+	}
+
+	/**
+	 * Reads the rest of the body of the part, keeping it in memory if
+	 * it is no larger than a threshold, or in a temporary file if it
+	 * is.  The file is deleted when the parser is closed.
+	 *
+	 * @param	threshold
+	 *		The most bytes kept in memory.
+	 * @param	dir
+	 *		The directory for the file, or <code>null</code> for
+	 *		the default temporary directory.
+	 */
+	public void
+	buffer(int threshold, File dir)
+	    throws IOException
+	{
+	    if ((data != null) || (file != null)) {
+		return;
+	    }
+	    InputStream body = getInputStream();
+	    ByteArrayOutputStream mem = new ByteArrayOutputStream();
+	    byte[] tmp = new byte[Math.min(buf.length, threshold + 1)];
+	    int n;
+	    while ((n = body.read(tmp, 0, tmp.length)) >= 0) {
+		if (mem.size() + n > threshold) {
+		    File f = File.createTempFile("part", ".tmp", dir);
+		    files.addElement(f);
+		    OutputStream out = new FileOutputStream(f);
+		    try {
+			mem.writeTo(out);
+			out.write(tmp, 0, n);
+			byte[] big = new byte[buf.length];
+			while ((n = body.read(big, 0, big.length)) >= 0) {
+			    out.write(big, 0, n);
+			}
+		    } finally {
+			out.close();
+		    }
+		    file = f;
+		    return;
+		}
+		mem.write(tmp, 0, n);
+	    }
+	    data = mem.toByteArray();
+	}
+
+	/**
+	 * Returns the body of the part, if it has been buffered in memory.
+	 *
+	 * @return	The body, or <code>null</code> if it has not been
+	 *		buffered or was spilled to a file.
+	 */
+	public byte[]
+	getBytes()
+	{
+	    return data;
+	}
+
+	/**
+	 * Returns the temporary file holding the body of the part, or
+	 * <code>null</code> if it is not in a file.
+	 */
+	public File
+	getFile()
+	{
+	    return file;
+	}
+
+	/**
+	 * Returns the number of bytes of the body read so far; all of them
+	 * once the part has been buffered.
+	 */
+	public long
+	getSize()
+	{
+	    return size;
+	}
+
+	/**
+	 * Skips what is left of the body.
+	 */
+	void
+	finish()
+	    throws IOException
+	{
+	    if (finished) {
+		return;
+	    }
+	    InputStream body = getInputStream();
+	    byte[] tmp = new byte[buf.length];
+	    while (body.read(tmp, 0, tmp.length) >= 0) {
+		/* skipped */
+	    }
+	}
+    }
+
+    /**
+     * Returns a parameter of a header value, such as the
+     * <code>name</code> in <code>form-data; name="field"</code>.
+     */
+    static String
+    param(String value, String name)
+    {
+	int length = value.length();
+	int i = 0;
+	while (i < length) {
+	    int semi = value.indexOf(';', i);
+	    if (semi < 0) {
+		return null;
+	    }
+	    i = semi + 1;
+	    while ((i < length) && (value.charAt(i) == ' ')) {
+		i++;
+	    }
+	    int eq = value.indexOf('=', i);
+	    if (eq < 0) {
+		return null;
+	    }
+	    if (value.substring(i, eq).trim().equalsIgnoreCase(name) == false) {
+		continue;
+	    }
+	    i = eq + 1;
+	    if ((i < length) && (value.charAt(i) == '"')) {
+		int end = value.indexOf('"', i + 1);
+		return value.substring(i + 1, (end < 0) ? length : end);
+	    }
+	    int end = value.indexOf(';', i);
+	    return value.substring(i, (end < 0) ? length : end).trim();
+	}
+	return null;
+    }
+}
@@ -0,0 +1,289 @@
+package sunlabs.brazil.util.http;
+
+import java.util.Hashtable;
+
+/**
+ * The parameters of a request, from the query string of its URL and from
+ * any <code>application/x-www-form-urlencoded</code> content.
+ * <p>
+ * The sources are only split into <i>name=value</i> pairs the first time
+ * a parameter is asked for, and each value is only URL-decoded the first
+ * time it is fetched, then kept.  A name may have several values; they
+ * are kept in the order they appeared, the query string first.
+ * <p>
+ * {@link #reset} empties the parameters but keeps the arrays, so one
+ * <code>QueryData</code> can serve all the requests on a connection.
+ * <p>
+ * Names and values are decoded the same way as by
+ * <code>HttpUtil.extractQuery</code>: a "+" is a space, and each "%xx"
+ * is the character with that code.
+ */
+public class QueryData
+{
+    private static final String XML = "<?xml version='1.0' encoding='UTF-8'?>";
+
+    private String[] sources = new String[2];
+    private int sourceCount;
+
+    /**
+     * The number of sources already split into parameters.
+     */
+    private int parsed;
+
+    private String[] names = new String[8];
+    private String[] values = new String[8];
+
+    /**
+     * For each parameter, the source it is from and where its value
+     * starts and ends in it.
+     */
+    private int[] spans = new int[8 * 3];
+    private int count;
+
+    /**
+     * Forgets all the parameters.
+     */
+    public void
+    reset()
+    {
+	for (int i = 0; i < sourceCount; i++) {
+	    sources[i] = null;
+	}
+	for (int i = 0; i < count; i++) {
+	    names[i] = null;
+	    values[i] = null;
+	}
+	sourceCount = 0;
+	count = 0;
+	parsed = 0;
+    }
+
+    /**
+     * Adds the parameters in a query string, or in url-encoded content.
+     * It is only parsed when a parameter is first asked for.
+     *
+     * @param	source
+     *		The parameters, without a leading "?".  May be
+     *		<code>null</code>.
+     */
+    public void
+    add(String source)
+    {
+	if ((source == null) || (source.length() == 0)) {
+	    return;
+	}
+	if (sourceCount == sources.length) {
+	    String[] tmp = new String[sourceCount * 2];
+	    System.arraycopy(sources, 0, tmp, 0, sourceCount);
+	    sources = tmp;
+	}
+	sources[sourceCount++] = source;
+    }
+
+    /**
+     * Returns the number of parameters.  A name with several values
+     * counts once for each.
+     */
+    public int
+    size()
+    {
+	parse();
+	return count;
+    }
+
+    /**
+     * Returns the name of the parameter at an index, from <code>0</code>
+     * to <code>size() - 1</code>.
+     */
+    public String
+    getName(int i)
+    {
+	parse();
+	check(i);
+	return names[i];
+    }
+
+    /**
+     * Returns the value of the parameter at an index, from <code>0</code>
+     * to <code>size() - 1</code>.
+     */
+    public String
+    getValue(int i)
+    {
+	parse();
+	check(i);
+	if (values[i] == null) {
+	    String source = sources[spans[i * 3]];
+	    values[i] = decode(source, spans[i * 3 + 1], spans[i * 3 + 2]);
+	}
+	return values[i];
+    }
+
+    /**
+     * Returns the first value of a parameter.
+     *
+     * @param	name
+     *		The name of the parameter.
+     *
+     * @return	The value, <code>""</code> if the parameter has no
+     *		"=", or <code>null</code> if there is no such parameter.
+     */
+    public String
+    get(String name)
+    {
+	parse();
+	for (int i = 0; i < count; i++) {
+	    if (name.equals(names[i])) {
+		return getValue(i);
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Returns all the values of a parameter, in order.
+     *
+     * @param	name
+     *		The name of the parameter.
+     *
+     * @return	The values, an empty array if there is no such parameter.
+     */
+    public String[]
+    getValues(String name)
+    {
+	parse();
+	int n = 0;
+	for (int i = 0; i < count; i++) {
+	    if (name.equals(names[i])) {
+		n++;
+	    }
+	}
+	String[] result = new String[n];
+	n = 0;
+	for (int i = 0; i < count; i++) {
+	    if (name.equals(names[i])) {
+		result[n++] = getValue(i);
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * Puts the parameters into a hashtable.  As with
+     * <code>HttpUtil.extractQuery</code>, a name with several values is
+     * left mapped to its last value.
+     *
+     * @param	table
+     *		The table to fill in.
+     *
+     * @return	The table.
+     */
+    public Hashtable
+    copyTo(Hashtable table)
+    {
+	parse();
+	for (int i = 0; i < count; i++) {
+	    table.put(names[i], getValue(i));
+	}
+	return table;
+    }
+
+    private void
+    check(int i)
+    {
+	if ((i < 0) || (i >= count)) {
+	    throw new ArrayIndexOutOfBoundsException(i);
+	}
+    }
+
+    /**
+     * Splits the sources not yet parsed into parameters.  Only the names
+     * are decoded.
+     */
+    private void
+    parse()
+    {
+	for (int s = parsed; s < sourceCount; s++) {
+	    String source = sources[s];
+	    int length = source.length();
+	    if (source.indexOf(XML) >= 0) {
+		append("xml", s, 0, length);
+		values[count - 1] = source;
+		continue;
+	    }
+	    int start = 0;
+	    while (start <= length) {
+		int end = source.indexOf('&', start);
+		if (end < 0) {
+		    end = length;
+		}
+		if (end > start) {
+		    int eq = source.indexOf('=', start);
+		    if ((eq < 0) || (eq > end)) {
+			append(decode(source, start, end), s, end, end);
+		    } else {
+			append(decode(source, start, eq), s, eq + 1, end);
+		    }
+		}
+		start = end + 1;
+	    }
+	}
+	parsed = sourceCount;
+    }
+
+    private void
+    append(String name, int source, int from, int to)
+    {
+	if (count == names.length) {
+	    String[] n = new String[count * 2];
+	    String[] v = new String[count * 2];
+	    int[] x = new int[count * 2 * 3];
+	    System.arraycopy(names, 0, n, 0, count);
+	    System.arraycopy(values, 0, v, 0, count);
+	    System.arraycopy(spans, 0, x, 0, count * 3);
+	    names = n;
+	    values = v;
+	    spans = x;
+	}
+	names[count] = name;
+	spans[count * 3] = source;
+	spans[count * 3 + 1] = from;
+	spans[count * 3 + 2] = to;
+	count++;
+    }
+
+    /**
+     * URL-decodes part of a string, without copying it if there is
+     * nothing to decode.  Malformed "%" sequences are kept as they are.
+     */
+    static String
+    decode(String src, int from, int to)
+    {
+	int i = from;
+	while ((i < to) && (src.charAt(i) != '+') && (src.charAt(i) != '%')) {
+	    i++;
+	}
+	if (i == to) {
+	    return ((from == 0) && (to == src.length()))
+		    ? src : src.substring(from, to);
+	}
+
+	StringBuffer sb = new StringBuffer(to - from);
+	sb.append(src, from, i);
+	for ( ; i < to; i++) {
+	    char ch = src.charAt(i);
+	    if (ch == '+') {
+		ch = ' ';
+	    } else if ((ch == '%') && (i + 2 < to)) {
+		int hi = Character.digit(src.charAt(i + 1), 16);
+		int lo = Character.digit(src.charAt(i + 2), 16);
+		if ((hi >= 0) && (lo >= 0)) {
+		    ch = (char) (hi * 16 + lo);
+		    i += 2;
+		}
+	    }
+	    sb.append(ch);
+	}
+	return sb.toString();
+    }
+}